@@ -0,0 +1,26 @@
+package net.lenni0451.noteblockbot;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Access to the synthetic songs used as benchmark input.<br>
+ * All NBS songs use 16 vanilla instruments with random keys, volumes and panning:
+ * <ul>
+ *     <li>short: 10 seconds, 3 notes per tick at 10 t/s</li>
+ *     <li>medium: 60 seconds, 3 notes per tick at 10 t/s</li>
+ *     <li>long: 300 seconds, 3 notes per tick at 10 t/s</li>
+ *     <li>dense: 60 seconds, 24 notes per tick at 20 t/s</li>
+ * </ul>
+ * The MIDI song is 60 seconds long and uses 4 channels with different programs.
+ */
+public class BenchmarkSongs {
+
+    public static byte[] read(final String fileName) throws IOException {
+        try (InputStream is = BenchmarkSongs.class.getResourceAsStream("/songs/" + fileName)) {
+            if (is == null) throw new IOException("Benchmark song " + fileName + " does not exist");
+            return is.readAllBytes();
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+package net.lenni0451.noteblockbot.commands.impl;
+
+import net.lenni0451.noteblockbot.BenchmarkSongs;
+import net.raphimc.noteblocklib.NoteBlockLib;
+import net.raphimc.noteblocklib.format.SongFormat;
+import net.raphimc.noteblocklib.model.song.Song;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MidiConverterBenchmark {
+
+    private byte[] midiData;
+
+    @Setup
+    public void setup() throws Exception {
+        this.midiData = BenchmarkSongs.read("song.mid");
+    }
+
+    @Benchmark
+    public byte[] convert() throws Exception {
+        Song song = NoteBlockLib.readSong(this.midiData, SongFormat.MIDI);
+        song = NoteBlockLib.convertSong(song, SongFormat.NBS);
+        ByteArrayOutputStream nbsData = new ByteArrayOutputStream();
+        NoteBlockLib.writeSong(song, nbsData);
+        return nbsData.toByteArray();
+    }
+
+}
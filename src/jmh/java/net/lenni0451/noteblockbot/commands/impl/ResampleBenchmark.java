@@ -0,0 +1,47 @@
+package net.lenni0451.noteblockbot.commands.impl;
+
+import net.lenni0451.noteblockbot.BenchmarkSongs;
+import net.raphimc.noteblocklib.NoteBlockLib;
+import net.raphimc.noteblocklib.format.SongFormat;
+import net.raphimc.noteblocklib.format.nbs.model.NbsSong;
+import net.raphimc.noteblocklib.util.SongResampler;
+import net.raphimc.noteblocktool.util.MinecraftOctaveClamp;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ResampleBenchmark {
+
+    @Param({"medium", "long", "dense"})
+    private String song;
+    @Param //All octave clamp modes
+    private MinecraftOctaveClamp octaveClamp;
+
+    private byte[] songData;
+    private NbsSong nbsSong;
+
+    @Setup(Level.Trial)
+    public void readData() throws Exception {
+        this.songData = BenchmarkSongs.read(this.song + ".nbs");
+    }
+
+    @Setup(Level.Invocation)
+    public void readSong() throws Exception {
+        //Resampling modifies the song, so every invocation needs a fresh copy
+        this.nbsSong = (NbsSong) NoteBlockLib.readSong(this.songData, SongFormat.NBS);
+    }
+
+    @Benchmark
+    public NbsSong resample() throws Exception {
+        this.nbsSong.getNotes().forEach(this.octaveClamp::correctNote);
+        SongResampler.changeTickSpeed(this.nbsSong, 20);
+        return (NbsSong) NoteBlockLib.convertSong(this.nbsSong, SongFormat.NBS);
+    }
+
+}
@@ -0,0 +1,43 @@
+package net.lenni0451.noteblockbot.export;
+
+import net.lenni0451.noteblockbot.BenchmarkSongs;
+import net.lenni0451.noteblockbot.task.TaskHandle;
+import net.lenni0451.noteblockbot.utils.ChunkedOutput;
+import net.raphimc.noteblocklib.NoteBlockLib;
+import net.raphimc.noteblocklib.format.SongFormat;
+import net.raphimc.noteblocklib.format.nbs.model.NbsSong;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class Mp3EncoderBenchmark {
+
+    @Param({"short", "medium", "long", "dense"})
+    private String song;
+    @Param({"256", "4096", "16384"})
+    private int maxSounds;
+
+    private NbsSong nbsSong;
+    private SoundBank soundBank;
+
+    @Setup
+    public void setup() throws Exception {
+        this.nbsSong = (NbsSong) NoteBlockLib.readSong(BenchmarkSongs.read(this.song + ".nbs"), SongFormat.NBS);
+        this.soundBank = new SoundBank(Files.createTempDirectory("sounds").toFile());
+    }
+
+    @Benchmark
+    public long encode() throws Exception {
+        try (ChunkedOutput output = Mp3Encoder.INSTANCE.encode(this.nbsSong, this.soundBank, Mp3Encoder.INSTANCE.getDefaultSettings(), this.maxSounds, new TaskHandle(0))) {
+            return output.size();
+        }
+    }
+
+}
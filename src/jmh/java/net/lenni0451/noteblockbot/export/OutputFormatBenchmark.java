@@ -0,0 +1,56 @@
+package net.lenni0451.noteblockbot.export;
+
+import net.lenni0451.noteblockbot.BenchmarkSongs;
+import net.lenni0451.noteblockbot.task.TaskHandle;
+import net.lenni0451.noteblockbot.utils.ChunkedOutput;
+import net.raphimc.noteblocklib.NoteBlockLib;
+import net.raphimc.noteblocklib.format.SongFormat;
+import net.raphimc.noteblocklib.format.nbs.model.NbsSong;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the encode time and the output size of all output formats with their default settings.<br>
+ * The output size is reported as the {@code outputBytes} secondary result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class OutputFormatBenchmark {
+
+    @Param({"short", "medium", "long", "dense"})
+    private String song;
+    @Param({"MP3", "OPUS"})
+    private OutputFormat format;
+
+    private NbsSong nbsSong;
+    private SoundBank soundBank;
+
+    @Setup
+    public void setup() throws Exception {
+        this.nbsSong = (NbsSong) NoteBlockLib.readSong(BenchmarkSongs.read(this.song + ".nbs"), SongFormat.NBS);
+        this.soundBank = new SoundBank(Files.createTempDirectory("sounds").toFile());
+    }
+
+    @Benchmark
+    public long encode(final OutputSize outputSize) throws Exception {
+        AudioEncoder encoder = this.format.getEncoder();
+        try (ChunkedOutput output = encoder.encode(this.nbsSong, this.soundBank, encoder.getDefaultSettings(), new TaskHandle(0))) {
+            outputSize.outputBytes = output.size();
+            return output.size();
+        }
+    }
+
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class OutputSize {
+        public long outputBytes;
+    }
+
+}
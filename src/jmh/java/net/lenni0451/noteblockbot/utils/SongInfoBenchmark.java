@@ -0,0 +1,34 @@
+package net.lenni0451.noteblockbot.utils;
+
+import net.lenni0451.noteblockbot.BenchmarkSongs;
+import net.raphimc.noteblocklib.NoteBlockLib;
+import net.raphimc.noteblocklib.format.SongFormat;
+import net.raphimc.noteblocklib.format.nbs.model.NbsSong;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SongInfoBenchmark {
+
+    @Param({"short", "long", "dense"})
+    private String song;
+
+    private NbsSong nbsSong;
+
+    @Setup
+    public void setup() throws Exception {
+        this.nbsSong = (NbsSong) NoteBlockLib.readSong(BenchmarkSongs.read(this.song + ".nbs"), SongFormat.NBS);
+    }
+
+    @Benchmark
+    public String fromSong() {
+        return SongInfo.fromSong(this.nbsSong);
+    }
+
+}
@@ -7,11 +7,25 @@ import net.dv8tion.jda.api.JDABuilder;
 import net.dv8tion.jda.api.requests.GatewayIntent;
 import net.dv8tion.jda.api.requests.restaction.CommandListUpdateAction;
 import net.lenni0451.noteblockbot.commands.CommandParser;
+import net.lenni0451.noteblockbot.commands.CommandRegistry;
+import net.lenni0451.noteblockbot.commands.impl.BatchCommand;
 import net.lenni0451.noteblockbot.commands.impl.MidiConverterCommand;
 import net.lenni0451.noteblockbot.commands.impl.ResampleCommand;
+import net.lenni0451.noteblockbot.commands.impl.SettingsCommand;
+import net.lenni0451.noteblockbot.commands.impl.StatsCommand;
 import net.lenni0451.noteblockbot.data.Config;
+import net.lenni0451.noteblockbot.data.CostModel;
+import net.lenni0451.noteblockbot.data.GuildSettings;
+import net.lenni0451.noteblockbot.data.InteractionLogger;
+import net.lenni0451.noteblockbot.data.InteractionStats;
+import net.lenni0451.noteblockbot.data.RenderCache;
 import net.lenni0451.noteblockbot.data.SQLiteDB;
+import net.lenni0451.noteblockbot.data.TaskJournal;
+import net.lenni0451.noteblockbot.export.SoundBank;
 import net.lenni0451.noteblockbot.listener.MessageListener;
+import net.lenni0451.noteblockbot.metrics.MetricsServer;
+import net.lenni0451.noteblockbot.task.MemoryBudget;
+import net.lenni0451.noteblockbot.task.Pipeline;
 import net.lenni0451.noteblockbot.task.TaskQueue;
 import net.lenni0451.optconfig.ConfigLoader;
 import net.lenni0451.optconfig.provider.ConfigProvider;
@@ -19,6 +33,9 @@ import net.lenni0451.optconfig.provider.ConfigProvider;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 
 @Slf4j
@@ -28,8 +45,22 @@ public class Main {
     @Getter
     private static TaskQueue taskQueue;
     @Getter
+    private static Pipeline pipeline;
+    @Getter
     private static SQLiteDB db;
     @Getter
+    private static TaskJournal taskJournal;
+    @Getter
+    private static GuildSettings guildSettings;
+    @Getter
+    private static InteractionLogger interactionLogger;
+    @Getter
+    private static InteractionStats interactionStats;
+    @Getter
+    private static RenderCache renderCache;
+    @Getter
+    private static SoundBank soundBank;
+    @Getter
     private static JDA jda;
 
     public static void main(String[] args) throws Throwable {
@@ -41,12 +72,63 @@ public class Main {
         }
         loadConfig();
 
-        taskQueue = new TaskQueue();
+        MetricsServer.start();
         db = new SQLiteDB("data.db");
+        taskJournal = new TaskJournal(db);
+        guildSettings = new GuildSettings(db);
+        taskQueue = new TaskQueue();
+        pipeline = new Pipeline(taskQueue, new MemoryBudget(), taskJournal);
+        interactionLogger = new InteractionLogger(db);
+        interactionStats = new InteractionStats(db);
+        interactionStats.startRollups();
+        CostModel.startCalibration(db);
+        renderCache = new RenderCache();
+        soundBank = new SoundBank(new File("Sounds"));
+        MessageListener messageListener = new MessageListener();
         jda = JDABuilder.create(token, GatewayIntent.GUILD_MESSAGES, GatewayIntent.MESSAGE_CONTENT)
-                .addEventListeners(new MessageListener())
+                .addEventListeners(messageListener)
                 .build().awaitReady();
         registerCommands();
+        Runtime.getRuntime().addShutdownHook(new Thread(Main::shutdown, "Shutdown"));
+        resumeJobs(messageListener);
+    }
+
+    private static void resumeJobs(final MessageListener messageListener) throws SQLException {
+        List<TaskJournal.Entry> entries = taskJournal.getPending();
+        if (entries.isEmpty()) return;
+        log.info("Resuming {} jobs which have been interrupted by a restart", entries.size());
+        List<TaskJournal.Entry> renders = new ArrayList<>();
+        for (TaskJournal.Entry entry : entries) {
+            if (entry.isExpired()) {
+                taskJournal.remove(entry.id());
+                continue;
+            }
+            switch (entry.type()) {
+                case TaskJournal.MP3 -> renders.add(entry);
+                case TaskJournal.MIDI -> MidiConverterCommand.resume(jda, entry);
+                case TaskJournal.RESAMPLE -> ResampleCommand.resume(jda, entry);
+                case TaskJournal.BATCH -> BatchCommand.resume(jda, entry);
+                default -> {
+                    log.warn("Dropping unknown job type {}", entry.type());
+                    taskJournal.remove(entry.id());
+                }
+            }
+        }
+        messageListener.resume(jda, renders);
+    }
+
+    /**
+     * Finish the running jobs and write all remaining data before the bot stops.
+     */
+    private static void shutdown() {
+        try {
+            log.info("Waiting for running jobs to finish...");
+            pipeline.shutdown(Config.Pipeline.shutdownTimeout * 1000L);
+            jda.shutdown();
+            jda.awaitShutdown(Duration.ofSeconds(10));
+            interactionLogger.close(5000);
+        } catch (InterruptedException ignored) {
+        }
     }
 
     private static void loadConfig() throws IOException {
@@ -59,12 +141,14 @@ public class Main {
         CommandListUpdateAction commands = jda.updateCommands();
         List<CommandParser> commandParsers = List.of(
                 new MidiConverterCommand(),
-                new ResampleCommand()
+                new ResampleCommand(),
+                new BatchCommand(),
+                new SettingsCommand(),
+                new StatsCommand()
         );
-        for (CommandParser parser : commandParsers) {
-            parser.register(commands);
-            jda.addEventListener(parser);
-        }
+        CommandRegistry registry = new CommandRegistry();
+        for (CommandParser parser : commandParsers) registry.register(parser, commands);
+        jda.addEventListener(registry);
         commands.queue();
     }
 
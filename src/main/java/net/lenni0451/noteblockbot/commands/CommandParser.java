@@ -1,144 +1,28 @@
 package net.lenni0451.noteblockbot.commands;
 
-import lombok.extern.slf4j.Slf4j;
 import net.dv8tion.jda.api.entities.Message;
-import net.dv8tion.jda.api.entities.channel.unions.GuildChannelUnion;
-import net.dv8tion.jda.api.events.interaction.command.CommandAutoCompleteInteractionEvent;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
-import net.dv8tion.jda.api.hooks.ListenerAdapter;
-import net.dv8tion.jda.api.interactions.InteractionContextType;
-import net.dv8tion.jda.api.interactions.commands.DefaultMemberPermissions;
-import net.dv8tion.jda.api.interactions.commands.OptionMapping;
-import net.dv8tion.jda.api.interactions.commands.build.Commands;
-import net.dv8tion.jda.api.interactions.commands.build.SlashCommandData;
-import net.dv8tion.jda.api.requests.restaction.CommandListUpdateAction;
-import net.lenni0451.noteblockbot.commands.annotations.Arg;
-import net.lenni0451.noteblockbot.commands.annotations.Command;
-import net.lenni0451.noteblockbot.commands.annotations.RateLimited;
-import net.lenni0451.noteblockbot.commands.annotations.Required;
-import net.lenni0451.noteblockbot.data.RateLimiter;
-import org.jetbrains.annotations.NotNull;
+import net.lenni0451.noteblockbot.data.TaskJournal;
+import net.lenni0451.noteblockbot.utils.MessageException;
 
-import java.lang.annotation.Annotation;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Locale;
-import java.util.function.Function;
 
-@Slf4j
-public abstract class CommandParser extends ListenerAdapter {
+/**
+ * The base class of all command parsers.<br>
+ * The methods annotated with {@link net.lenni0451.noteblockbot.commands.annotations.Command} are registered in the {@link CommandRegistry}.
+ */
+public abstract class CommandParser {
 
-    private final List<RegisteredCommand> registeredCommands;
-
-    public CommandParser() {
-        this.registeredCommands = new ArrayList<>();
-    }
-
-    public void register(final CommandListUpdateAction commands) {
-        for (Method method : this.getClass().getDeclaredMethods()) {
-            if (!method.isAnnotationPresent(Command.class)) continue;
-            if (Modifier.isStatic(method.getModifiers())) throw new IllegalArgumentException("Command methods must not be static");
-            Command command = method.getDeclaredAnnotation(Command.class);
-            RateLimited rateLimited = method.getDeclaredAnnotation(RateLimited.class);
-            List<ArgumentType> arguments = new ArrayList<>();
-            for (int i = 0; i < method.getParameterCount(); i++) {
-                Class<?> type = method.getParameterTypes()[i];
-                if (i == 0) {
-                    if (!type.equals(SlashCommandInteractionEvent.class)) {
-                        throw new IllegalArgumentException("First parameter must be of type SlashCommandInteractionEvent");
-                    }
-                } else {
-                    Annotation[] annotations = method.getParameterAnnotations()[i];
-                    arguments.add(this.getArgumentType(type, annotations));
-                }
-            }
-
-            SlashCommandData commandData = Commands.slash(command.name(), command.description());
-            for (ArgumentType argument : arguments) {
-                commandData.addOption(argument.arg.type(), argument.arg.name(), argument.arg.description(), argument.required, argument.completionSupplier != null);
-            }
-            commandData.setContexts(InteractionContextType.GUILD).setDefaultPermissions(DefaultMemberPermissions.enabledFor(command.permissions()));
-            commands.addCommands(commandData);
-
-            method.setAccessible(true);
-            this.registeredCommands.add(new RegisteredCommand(command, rateLimited, method, arguments));
-        }
-    }
-
-    @Override
-    public void onSlashCommandInteraction(@NotNull SlashCommandInteractionEvent event) {
-        if (!event.isFromGuild()) return;
-        for (RegisteredCommand command : this.registeredCommands) {
-            if (!command.command().name().equalsIgnoreCase(event.getName())) continue;
-            if (command.rateLimited.user() && !RateLimiter.tryUser(event.getUser().getIdLong())) {
-                event.reply("You are sending too many requests. Please wait a bit before sending another request. 🐌").setEphemeral(true).queue();
-            } else if (command.rateLimited.guild() && !RateLimiter.tryGuild(event.getGuild().getIdLong())) {
-                event.reply("You are sending too many requests. Please wait a bit before sending another request. 🐌").setEphemeral(true).queue();
-            } else {
-                Object[] arguments = new Object[command.arguments.size() + 1];
-                arguments[0] = event;
-                for (int i = 0; i < command.arguments.size(); i++) {
-                    try {
-                        ArgumentType argumentType = command.arguments.get(i);
-                        arguments[i + 1] = event.getOption(argumentType.arg.name(), argumentType.parser);
-                    } catch (MessageException e) {
-                        event.reply(e.getMessage()).setEphemeral(true).queue();
-                        return;
-                    } catch (Throwable t) {
-                        log.error("An error occurred while parsing the arguments", t);
-                        event.reply("Invalid argument: " + t.getMessage()).setEphemeral(true).queue();
-                        return;
-                    }
-                }
-                try {
-                    try {
-                        command.method.invoke(this, arguments);
-                    } catch (InvocationTargetException e) {
-                        throw e.getCause();
-                    } catch (IllegalArgumentException e) {
-                        if (e.getMessage().equalsIgnoreCase("argument type mismatch")) {
-                            log.error("Argument type mismatch!");
-                            log.error("Method arguments: {}", Arrays.stream(command.method.getParameterTypes()).map(Class::getName).toList());
-                            log.error("Provided arguments: {}", Arrays.stream(arguments).map((Object o) -> o == null ? "null" : o.getClass().getName()).toList());
-                        }
-                        throw e;
-                    }
-                } catch (MessageException e) {
-                    event.reply(e.getMessage()).setEphemeral(true).queue();
-                    return;
-                } catch (Throwable t) {
-                    log.error("An error occurred while executing the command", t);
-                    event.reply("An error occurred while executing the command: " + t.getMessage()).setEphemeral(true).queue();
-                    return;
-                }
-            }
-            break;
-        }
-    }
-
-    @Override
-    public void onCommandAutoCompleteInteraction(@NotNull CommandAutoCompleteInteractionEvent event) {
-        if (!event.isFromGuild()) return;
-        for (RegisteredCommand command : this.registeredCommands) {
-            if (!command.command().name().equalsIgnoreCase(event.getName())) continue;
-            for (ArgumentType argument : command.arguments) {
-                if (!argument.arg().name().equalsIgnoreCase(event.getFocusedOption().getName())) continue;
-                if (argument.completionSupplier == null) return;
-                List<String> completions = new ArrayList<>();
-                argument.completionSupplier.complete(completions);
-                event.replyChoices(
-                        completions.stream()
-                                .filter(c -> c.toLowerCase(Locale.ROOT).startsWith(event.getFocusedOption().getValue().toLowerCase(Locale.ROOT)))
-                                .map(c -> new net.dv8tion.jda.api.interactions.commands.Command.Choice(c, c))
-                                .toList()
-                ).queue();
-                return;
-            }
-        }
+    /**
+     * Get the auto completion candidates of a string argument.<br>
+     * The index is requested once when the command is registered, dynamic candidates have to be added to and removed from the returned index.
+     *
+     * @param argument The name of the argument
+     * @return The completion index or {@code null} if the argument has no auto completion
+     */
+    protected CompletionIndex getCompletions(final String argument) {
+        return null;
     }
 
     protected final void validateAttachment(final Message.Attachment attachment, final int maxFileSize, final String... allowedExtensions) {
@@ -150,89 +34,20 @@ public abstract class CommandParser extends ListenerAdapter {
         }
     }
 
-    private ArgumentType getArgumentType(final Class<?> type, final Annotation[] annotations) {
-        Arg arg = null;
-        Required required = null;
-        for (Annotation annotation : annotations) {
-            if (annotation instanceof Arg) arg = (Arg) annotation;
-            if (annotation instanceof Required) required = (Required) annotation;
-        }
-        if (arg == null) throw new IllegalArgumentException("Argument does not have a Arg annotation");
-        ArgumentParser parser;
-        CompletionSupplier completionSupplier = null;
-        switch (arg.type()) {
-            case STRING -> {
-                if (type.equals(String.class)) {
-                    parser = OptionMapping::getAsString;
-                } else if (Enum.class.isAssignableFrom(type)) {
-                    parser = optionMapping -> {
-                        String value = optionMapping.getAsString();
-                        try {
-                            return Enum.valueOf((Class<? extends Enum>) type, value.toUpperCase(Locale.ROOT));
-                        } catch (IllegalArgumentException e) {
-                            throw new MessageException("Unknown enum value: " + value);
-                        }
-                    };
-                    completionSupplier = completions -> {
-                        for (Enum<?> enumConstant : (Enum<?>[]) type.getEnumConstants()) {
-                            completions.add(enumConstant.name().toLowerCase(Locale.ROOT));
-                        }
-                    };
-                } else {
-                    throw new IllegalArgumentException("Invalid argument type for STRING: " + type.getName());
-                }
-            }
-            case INTEGER -> {
-                if (type.equals(Integer.class)) {
-                    parser = OptionMapping::getAsInt;
-                } else {
-                    throw new IllegalArgumentException("Invalid argument type for INTEGER: " + type.getName());
-                }
-            }
-            case ATTACHMENT -> {
-                if (type.equals(Message.Attachment.class)) {
-                    parser = OptionMapping::getAsAttachment;
-                } else {
-                    throw new IllegalArgumentException("Invalid argument type for ATTACHMENT: " + type.getName());
-                }
-            }
-            case CHANNEL -> {
-                if (type.equals(GuildChannelUnion.class)) {
-                    parser = OptionMapping::getAsChannel;
-                } else {
-                    throw new IllegalArgumentException("Invalid argument type for CHANNEL: " + type.getName());
-                }
-            }
-            default -> throw new IllegalArgumentException("Invalid argument type: " + arg.type());
-        }
-        return new ArgumentType(arg, required != null, parser, completionSupplier);
-    }
-
-
-    private record RegisteredCommand(Command command, RateLimited rateLimited, Method method, List<ArgumentType> arguments) {
-    }
-
-    private record ArgumentType(Arg arg, boolean required, ArgumentParser parser, CompletionSupplier completionSupplier) {
-    }
-
-    @FunctionalInterface
-    private interface ArgumentParser extends Function<OptionMapping, Object> {
-    }
-
-    @FunctionalInterface
-    private interface CompletionSupplier {
-        void complete(final List<String> completions);
-    }
-
-    private static class MessageException extends RuntimeException {
-        public MessageException(final String message) {
-            super(message);
-        }
-
-        @Override
-        public synchronized Throwable fillInStackTrace() {
-            return this;
-        }
+    /**
+     * Create the journal entry of a job requested by a command.<br>
+     * The interaction token is stored to deliver the result after a restart.
+     *
+     * @param event      The command event
+     * @param type       The type of the job
+     * @param attachment The attachment to process
+     * @param parameters Additional parameters of the job
+     * @return The journal entry
+     */
+    protected final TaskJournal.Entry createJournalEntry(final SlashCommandInteractionEvent event, final String type, final Message.Attachment attachment, final String parameters) {
+        return new TaskJournal.Entry(0, type, event.getGuild().getIdLong(), event.getChannelIdLong(), event.getIdLong(), event.getToken(),
+                event.getUser().getIdLong(), event.getUser().getAsTag(), event.getTimeCreated().toInstant().toEpochMilli(),
+                attachment.getFileName(), attachment.getSize(), attachment.getUrl(), parameters);
     }
 
 }
@@ -0,0 +1,215 @@
+package net.lenni0451.noteblockbot.commands;
+
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.channel.unions.GuildChannelUnion;
+import net.dv8tion.jda.api.events.interaction.command.CommandAutoCompleteInteractionEvent;
+import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import net.dv8tion.jda.api.interactions.InteractionContextType;
+import net.dv8tion.jda.api.interactions.commands.DefaultMemberPermissions;
+import net.dv8tion.jda.api.interactions.commands.OptionMapping;
+import net.dv8tion.jda.api.interactions.commands.build.Commands;
+import net.dv8tion.jda.api.interactions.commands.build.SlashCommandData;
+import net.dv8tion.jda.api.requests.restaction.CommandListUpdateAction;
+import net.lenni0451.noteblockbot.commands.annotations.Arg;
+import net.lenni0451.noteblockbot.commands.annotations.Command;
+import net.lenni0451.noteblockbot.commands.annotations.RateLimited;
+import net.lenni0451.noteblockbot.commands.annotations.Required;
+import net.lenni0451.noteblockbot.data.RateLimiter;
+import net.lenni0451.noteblockbot.utils.MessageException;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The single listener which dispatches all slash commands and their auto completions.<br>
+ * Commands are looked up by their name and invoked through a method handle which is bound to the command parser when it is registered.
+ * All reflection and argument resolving happens once during the registration, so the cost of an interaction does not grow with the amount of commands.
+ */
+@Slf4j
+public class CommandRegistry extends ListenerAdapter {
+
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(void.class, Object[].class);
+
+    private final Map<String, RegisteredCommand> registeredCommands = new HashMap<>();
+
+    /**
+     * Register all command methods of a command parser.<br>
+     * The commands are added to the update action, it has to be queued after all parsers have been registered.
+     *
+     * @param parser   The command parser
+     * @param commands The update action of the bot commands
+     */
+    public void register(final CommandParser parser, final CommandListUpdateAction commands) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (Method method : parser.getClass().getDeclaredMethods()) {
+            if (!method.isAnnotationPresent(Command.class)) continue;
+            if (Modifier.isStatic(method.getModifiers())) throw new IllegalArgumentException("Command methods must not be static");
+            Command command = method.getDeclaredAnnotation(Command.class);
+            String name = command.name().toLowerCase(Locale.ROOT);
+            if (this.registeredCommands.containsKey(name)) throw new IllegalStateException("Duplicate command: " + name);
+            RateLimited rateLimited = method.getDeclaredAnnotation(RateLimited.class);
+            if (method.getParameterCount() == 0 || !method.getParameterTypes()[0].equals(SlashCommandInteractionEvent.class)) {
+                throw new IllegalArgumentException("First parameter must be of type SlashCommandInteractionEvent");
+            }
+            ArgumentType[] arguments = new ArgumentType[method.getParameterCount() - 1];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = this.getArgumentType(parser, method.getParameterTypes()[i + 1], method.getParameterAnnotations()[i + 1]);
+            }
+
+            SlashCommandData commandData = Commands.slash(command.name(), command.description());
+            for (ArgumentType argument : arguments) {
+                commandData.addOption(argument.arg.type(), argument.arg.name(), argument.arg.description(), argument.required, argument.completions != null);
+            }
+            commandData.setContexts(InteractionContextType.GUILD).setDefaultPermissions(DefaultMemberPermissions.enabledFor(command.permissions()));
+            commands.addCommands(commandData);
+
+            MethodHandle invoker;
+            try {
+                method.setAccessible(true);
+                invoker = lookup.unreflect(method)
+                        .bindTo(parser)
+                        .asSpreader(Object[].class, method.getParameterCount())
+                        .asType(INVOKER_TYPE);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Unable to access command method " + method, e);
+            }
+            this.registeredCommands.put(name, new RegisteredCommand(command, rateLimited, invoker, arguments));
+        }
+    }
+
+    @Override
+    public void onSlashCommandInteraction(@NotNull SlashCommandInteractionEvent event) {
+        if (!event.isFromGuild()) return;
+        RegisteredCommand command = this.registeredCommands.get(event.getName().toLowerCase(Locale.ROOT));
+        if (command == null) return;
+        if (command.rateLimited != null) {
+            if ((command.rateLimited.user() && !RateLimiter.tryUser(event.getUser().getIdLong()))
+                    || (command.rateLimited.guild() && !RateLimiter.tryGuild(event.getGuild().getIdLong()))) {
+                event.reply("You are sending too many requests. Please wait a bit before sending another request. 🐌").setEphemeral(true).queue();
+                return;
+            }
+        }
+
+        Object[] arguments = new Object[command.arguments.length + 1];
+        arguments[0] = event;
+        for (int i = 0; i < command.arguments.length; i++) {
+            try {
+                ArgumentType argumentType = command.arguments[i];
+                arguments[i + 1] = event.getOption(argumentType.arg.name(), argumentType.parser);
+            } catch (MessageException e) {
+                event.reply(e.getMessage()).setEphemeral(true).queue();
+                return;
+            } catch (Throwable t) {
+                log.error("An error occurred while parsing the arguments", t);
+                event.reply("Invalid argument: " + t.getMessage()).setEphemeral(true).queue();
+                return;
+            }
+        }
+        try {
+            command.invoker.invokeExact(arguments);
+        } catch (MessageException e) {
+            event.reply(e.getMessage()).setEphemeral(true).queue();
+        } catch (Throwable t) {
+            log.error("An error occurred while executing the command", t);
+            event.reply("An error occurred while executing the command: " + t.getMessage()).setEphemeral(true).queue();
+        }
+    }
+
+    @Override
+    public void onCommandAutoCompleteInteraction(@NotNull CommandAutoCompleteInteractionEvent event) {
+        if (!event.isFromGuild()) return;
+        RegisteredCommand command = this.registeredCommands.get(event.getName().toLowerCase(Locale.ROOT));
+        if (command == null) return;
+        for (ArgumentType argument : command.arguments) {
+            if (!argument.arg.name().equalsIgnoreCase(event.getFocusedOption().getName())) continue;
+            if (argument.completions == null) return;
+            event.replyChoices(argument.completions.complete(event.getFocusedOption().getValue())).queue();
+            return;
+        }
+    }
+
+    private ArgumentType getArgumentType(final CommandParser parser, final Class<?> type, final Annotation[] annotations) {
+        Arg arg = null;
+        Required required = null;
+        for (Annotation annotation : annotations) {
+            if (annotation instanceof Arg) arg = (Arg) annotation;
+            if (annotation instanceof Required) required = (Required) annotation;
+        }
+        if (arg == null) throw new IllegalArgumentException("Argument does not have a Arg annotation");
+        ArgumentParser argumentParser;
+        CompletionIndex completions = null;
+        switch (arg.type()) {
+            case STRING -> {
+                if (type.equals(String.class)) {
+                    argumentParser = OptionMapping::getAsString;
+                    completions = parser.getCompletions(arg.name());
+                } else if (Enum.class.isAssignableFrom(type)) {
+                    argumentParser = optionMapping -> {
+                        String value = optionMapping.getAsString();
+                        try {
+                            return Enum.valueOf((Class<? extends Enum>) type, value.toUpperCase(Locale.ROOT));
+                        } catch (IllegalArgumentException e) {
+                            throw new MessageException("Unknown enum value: " + value);
+                        }
+                    };
+                    completions = new CompletionIndex(Arrays.stream((Enum<?>[]) type.getEnumConstants())
+                            .map(enumConstant -> enumConstant.name().toLowerCase(Locale.ROOT))
+                            .toList());
+                } else {
+                    throw new IllegalArgumentException("Invalid argument type for STRING: " + type.getName());
+                }
+            }
+            case INTEGER -> {
+                if (type.equals(Integer.class)) {
+                    argumentParser = OptionMapping::getAsInt;
+                } else {
+                    throw new IllegalArgumentException("Invalid argument type for INTEGER: " + type.getName());
+                }
+            }
+            case ATTACHMENT -> {
+                if (type.equals(Message.Attachment.class)) {
+                    argumentParser = OptionMapping::getAsAttachment;
+                } else {
+                    throw new IllegalArgumentException("Invalid argument type for ATTACHMENT: " + type.getName());
+                }
+            }
+            case CHANNEL -> {
+                if (type.equals(GuildChannelUnion.class)) {
+                    argumentParser = OptionMapping::getAsChannel;
+                } else {
+                    throw new IllegalArgumentException("Invalid argument type for CHANNEL: " + type.getName());
+                }
+            }
+            default -> throw new IllegalArgumentException("Invalid argument type: " + arg.type());
+        }
+        return new ArgumentType(arg, required != null, argumentParser, completions);
+    }
+
+
+    /**
+     * A registered command.<br>
+     * The invoker takes the event followed by the parsed arguments as one array.
+     */
+    private record RegisteredCommand(Command command, RateLimited rateLimited, MethodHandle invoker, ArgumentType[] arguments) {
+    }
+
+    private record ArgumentType(Arg arg, boolean required, ArgumentParser parser, CompletionIndex completions) {
+    }
+
+    @FunctionalInterface
+    private interface ArgumentParser extends Function<OptionMapping, Object> {
+    }
+
+}
@@ -0,0 +1,121 @@
+package net.lenni0451.noteblockbot.commands;
+
+import net.dv8tion.jda.api.interactions.commands.Command;
+import net.dv8tion.jda.api.interactions.commands.build.OptionData;
+
+import java.util.*;
+
+/**
+ * A prefix index of auto completion candidates.<br>
+ * The candidates are kept in an array sorted by their lowercase value, so a completion is a binary search followed by reading at most {@link #MAX_RESULTS} entries.
+ * The choices are created once when a candidate is added and reused for every reply.<br>
+ * Reading is lock free. Changes copy the array, so dynamic candidate sources should add and remove single candidates instead of replacing all of them.
+ */
+public class CompletionIndex {
+
+    public static final int MAX_RESULTS = OptionData.MAX_CHOICES;
+    private static final Comparator<Entry> ORDER = Comparator.comparing(Entry::key).thenComparing(entry -> entry.choice.getAsString());
+
+    private volatile Entry[] entries = new Entry[0];
+
+    public CompletionIndex() {
+    }
+
+    public CompletionIndex(final Collection<String> values) {
+        this.set(values);
+    }
+
+    /**
+     * Replace all candidates.
+     *
+     * @param values The new candidates
+     */
+    public synchronized void set(final Collection<String> values) {
+        Entry[] entries = values.stream()
+                .filter(CompletionIndex::isValid)
+                .distinct()
+                .map(Entry::of)
+                .sorted(ORDER)
+                .toArray(Entry[]::new);
+        this.entries = entries;
+    }
+
+    /**
+     * Add a candidate if it is not already present.
+     *
+     * @param value The candidate
+     */
+    public synchronized void add(final String value) {
+        if (!isValid(value)) return;
+        Entry entry = Entry.of(value);
+        Entry[] entries = this.entries;
+        int index = Arrays.binarySearch(entries, entry, ORDER);
+        if (index >= 0) return;
+        index = -index - 1;
+        Entry[] newEntries = new Entry[entries.length + 1];
+        System.arraycopy(entries, 0, newEntries, 0, index);
+        newEntries[index] = entry;
+        System.arraycopy(entries, index, newEntries, index + 1, entries.length - index);
+        this.entries = newEntries;
+    }
+
+    /**
+     * Remove a candidate if it is present.
+     *
+     * @param value The candidate
+     */
+    public synchronized void remove(final String value) {
+        if (!isValid(value)) return;
+        Entry[] entries = this.entries;
+        int index = Arrays.binarySearch(entries, Entry.of(value), ORDER);
+        if (index < 0) return;
+        Entry[] newEntries = new Entry[entries.length - 1];
+        System.arraycopy(entries, 0, newEntries, 0, index);
+        System.arraycopy(entries, index + 1, newEntries, index, entries.length - index - 1);
+        this.entries = newEntries;
+    }
+
+    public int size() {
+        return this.entries.length;
+    }
+
+    /**
+     * Get the choices whose value starts with the input, ignoring the case.
+     *
+     * @param input The current input of the user
+     * @return Up to {@link #MAX_RESULTS} choices in alphabetical order
+     */
+    public List<Command.Choice> complete(final String input) {
+        Entry[] entries = this.entries;
+        String prefix = input.toLowerCase(Locale.ROOT);
+        int low = 0;
+        int high = entries.length;
+        while (low < high) { //Find the first entry which is not smaller than the prefix
+            int mid = (low + high) >>> 1;
+            if (entries[mid].key.compareTo(prefix) < 0) low = mid + 1;
+            else high = mid;
+        }
+
+        List<Command.Choice> choices = new ArrayList<>(Math.min(MAX_RESULTS, entries.length - low));
+        for (int i = low; i < entries.length && choices.size() < MAX_RESULTS; i++) {
+            if (!entries[i].key.startsWith(prefix)) break;
+            choices.add(entries[i].choice);
+        }
+        return choices;
+    }
+
+    /**
+     * Discord rejects choices with an empty name or value and choices longer than 100 characters.
+     */
+    private static boolean isValid(final String value) {
+        return value != null && !value.isEmpty() && value.length() <= OptionData.MAX_CHOICE_VALUE_LENGTH;
+    }
+
+
+    private record Entry(String key, Command.Choice choice) {
+        private static Entry of(final String value) {
+            return new Entry(value.toLowerCase(Locale.ROOT), new Command.Choice(value, value));
+        }
+    }
+
+}
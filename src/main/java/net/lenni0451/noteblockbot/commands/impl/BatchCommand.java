@@ -0,0 +1,379 @@
+package net.lenni0451.noteblockbot.commands.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
+import net.dv8tion.jda.api.interactions.InteractionHook;
+import net.dv8tion.jda.api.interactions.commands.OptionType;
+import net.dv8tion.jda.api.utils.FileUpload;
+import net.lenni0451.noteblockbot.Main;
+import net.lenni0451.noteblockbot.commands.CommandParser;
+import net.lenni0451.noteblockbot.commands.annotations.Arg;
+import net.lenni0451.noteblockbot.commands.annotations.Command;
+import net.lenni0451.noteblockbot.commands.annotations.RateLimited;
+import net.lenni0451.noteblockbot.commands.annotations.Required;
+import net.lenni0451.noteblockbot.data.Config;
+import net.lenni0451.noteblockbot.data.CostModel;
+import net.lenni0451.noteblockbot.data.RateLimiter;
+import net.lenni0451.noteblockbot.data.TaskJournal;
+import net.lenni0451.noteblockbot.export.AudioEncoder;
+import net.lenni0451.noteblockbot.metrics.Metrics;
+import net.lenni0451.noteblockbot.task.PipelineJob;
+import net.lenni0451.noteblockbot.task.ProgressUpdater;
+import net.lenni0451.noteblockbot.task.TaskHandle;
+import net.lenni0451.noteblockbot.utils.ChunkedOutput;
+import net.lenni0451.noteblockbot.utils.MessageException;
+import net.lenni0451.noteblockbot.utils.NbsScanner;
+import net.lenni0451.noteblockbot.utils.NetUtils;
+import net.raphimc.noteblocklib.NoteBlockLib;
+import net.raphimc.noteblocklib.format.SongFormat;
+import net.raphimc.noteblocklib.format.nbs.model.NbsSong;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Converts all songs in a ZIP archive and uploads the results as one ZIP archive.<br>
+ * NBS files are rendered with the audio format of the guild, midi files are converted to NBS files.
+ * The whole archive is one job in the pipeline. Its songs are converted one after another on the worker of the job,
+ * so a batch is scheduled like any other job of the guild and never occupies more workers than a single render.
+ */
+@Slf4j
+public class BatchCommand extends CommandParser {
+
+    private static final long DEFAULT_MAX_FILE_SIZE = 10 * 1024 * 1024; //The upload limit of guilds without boosts
+    private static final int MAX_LISTED_ERRORS = 10;
+
+    @RateLimited
+    @Command(name = "batch", description = "Convert all noteblock and midi songs in a ZIP archive")
+    public void run(
+            SlashCommandInteractionEvent event,
+            @Arg(type = OptionType.ATTACHMENT, name = "zip-file", description = "The ZIP archive with the nbs files that should be rendered and the midi files that should be converted") @Required Message.Attachment attachment
+    ) {
+        this.validateAttachment(attachment, Config.Batch.maxArchiveSize, "zip");
+        log.info("User {} uploaded song pack {}", event.getUser().getAsTag(), attachment.getFileName());
+        event.reply("Extracting the song pack 📦...").setEphemeral(true).queue();
+        submit(event.getHook(), this.createJournalEntry(event, TaskJournal.BATCH, attachment, ""));
+    }
+
+    /**
+     * Resume a batch conversion which has been interrupted by a restart.
+     *
+     * @param jda   The JDA instance
+     * @param entry The pending batch job
+     */
+    public static void resume(final JDA jda, final TaskJournal.Entry entry) {
+        log.info("Resuming conversion of song pack {}", entry.fileName());
+        submit(InteractionHook.from(jda, entry.interactionToken()), entry);
+    }
+
+    private static void submit(final InteractionHook hook, final TaskJournal.Entry entry) {
+        try {
+            Main.getPipeline().submit(entry.guildId(), List.of(new BatchJob(hook, entry, new TaskHandle(Config.Timeouts.batch, entry::isExpired))), () -> {});
+        } catch (RejectedExecutionException e) {
+            hook.editOriginal("The bot is currently busy. Please try again later 🐌").queue();
+        }
+    }
+
+    /**
+     * Extract the songs from a ZIP archive.<br>
+     * The archive is decompressed as a stream and every entry is read with the size limit of its file type.
+     * All decompressed bytes, including the ones of skipped files, count towards the uncompressed size limit,
+     * so a ZIP bomb is aborted as soon as the limit is reached.
+     *
+     * @param archive The raw data of the archive
+     * @return The songs in the archive
+     * @throws IOException      If the archive could not be read
+     * @throws MessageException If the archive exceeds the limits or does not contain any songs
+     */
+    private static List<BatchEntry> extract(final byte[] archive) throws IOException {
+        List<BatchEntry> entries = new ArrayList<>();
+        long uncompressedSize = 0;
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive))) {
+            ZipEntry zipEntry;
+            while ((zipEntry = zis.getNextEntry()) != null) {
+                String path = zipEntry.getName().replace('\\', '/');
+                String name = path.substring(path.lastIndexOf('/') + 1);
+                BatchEntry.Type type = BatchEntry.Type.of(name);
+                if (zipEntry.isDirectory() || type == null || name.startsWith(".") || path.startsWith("__MACOSX/")) {
+                    uncompressedSize += skip(zis, Config.Batch.maxUncompressedSize - uncompressedSize);
+                } else {
+                    if (entries.size() >= Config.Batch.maxEntries) {
+                        throw new MessageException("The archive contains too many songs (Max: " + Config.Batch.maxEntries + ")");
+                    }
+                    int maxSize = type == BatchEntry.Type.NBS ? Config.SongLimits.maxNbsFileSize : Config.SongLimits.maxMidiFileSize;
+                    byte[] data = zis.readNBytes(maxSize + 1);
+                    uncompressedSize += data.length;
+                    if (data.length > maxSize) throw new MessageException(name + " is too large (Max: " + maxSize + " bytes)");
+                    entries.add(BatchEntry.of(name, type, data));
+                }
+                if (uncompressedSize > Config.Batch.maxUncompressedSize) {
+                    throw new MessageException("The archive is too large after decompressing it (Max: " + Config.Batch.maxUncompressedSize + " bytes)");
+                }
+            }
+        } catch (ZipException | IllegalArgumentException e) { //Entry names which are not valid UTF-8 throw an IllegalArgumentException
+            throw new MessageException("The file is not a valid ZIP archive");
+        }
+        if (entries.isEmpty()) throw new MessageException("The archive does not contain any nbs or midi files");
+        return entries;
+    }
+
+    /**
+     * Skip the rest of the current entry.
+     *
+     * @return The amount of skipped bytes, at most one more than the limit
+     */
+    private static long skip(final ZipInputStream zis, final long limit) throws IOException {
+        long skipped = 0;
+        while (skipped <= limit) {
+            long count = zis.skip(limit - skipped + 1);
+            if (count <= 0) break;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    /**
+     * Append the errors of the failed songs to a message.<br>
+     * The list is shortened to stay within the length limit of a message.
+     */
+    private static void appendErrors(final StringBuilder message, final List<String> errors) {
+        for (int i = 0; i < errors.size(); i++) {
+            String line = "\n-# " + errors.get(i);
+            if (i >= MAX_LISTED_ERRORS || message.length() + line.length() > Message.MAX_CONTENT_LENGTH - 50) {
+                message.append("\n-# ...and ").append(errors.size() - i).append(" more");
+                break;
+            }
+            message.append(line);
+        }
+    }
+
+    private static String uniqueName(final Set<String> names, final String name) {
+        if (names.add(name.toLowerCase(Locale.ROOT))) return name;
+        int extensionIndex = name.lastIndexOf('.');
+        for (int i = 2; ; i++) {
+            String uniqueName = name.substring(0, extensionIndex) + " (" + i + ")" + name.substring(extensionIndex);
+            if (names.add(uniqueName.toLowerCase(Locale.ROOT))) return uniqueName;
+        }
+    }
+
+
+    private record BatchJob(InteractionHook hook, TaskJournal.Entry entry, TaskHandle handle) implements PipelineJob<DownloadedBatch, BatchResult> {
+        @Override
+        public TaskJournal.Entry journalEntry() {
+            return this.entry;
+        }
+
+        @Override
+        public DownloadedBatch download() throws Throwable {
+            byte[] archive = NetUtils.getBytes(this.entry.url(), Config.Batch.maxArchiveSize);
+            List<BatchEntry> entries = extract(archive);
+            //Every song is charged like a single request, so a song pack can't be used to bypass the rate limit
+            long cost = 0;
+            for (BatchEntry entry : entries) {
+                if (entry.error != null) continue;
+                if (entry.type == BatchEntry.Type.NBS) cost += RateLimiter.cost(CostModel.estimateRender(entry.stats));
+                else cost += RateLimiter.cost(CostModel.estimateMidiConversion(entry.data.length));
+            }
+            if (cost > RateLimiter.maxCost()) {
+                throw new MessageException("The song pack is too large to be converted at once. Please split it into smaller packs");
+            }
+            if (!RateLimiter.adjust(this.entry.userId(), this.entry.guildId(), RateLimiter.REQUEST_UNITS, cost)) {
+                throw new MessageException("The song pack is too large for your remaining rate limit. Please wait a bit before sending it again 🐌");
+            }
+            Guild guild = Main.getJda().getGuildById(this.entry.guildId());
+            AudioEncoder encoder = Main.getGuildSettings().get(this.entry.guildId()).format().getEncoder();
+            return new DownloadedBatch(entries, encoder, guild == null ? DEFAULT_MAX_FILE_SIZE : guild.getMaxFileSize());
+        }
+
+        /**
+         * Only the most expensive song is counted because the songs are converted one after another, plus the songs and the archive which are kept until the upload.
+         */
+        @Override
+        public long estimateMemory(final DownloadedBatch batch) {
+            long memory = 0;
+            long dataSize = 0;
+            for (BatchEntry entry : batch.entries) {
+                memory = Math.max(memory, entry.estimateMemory(batch.encoder));
+                dataSize += entry.data.length;
+            }
+            return memory + dataSize + batch.maxFileSize;
+        }
+
+        @Override
+        public BatchResult process(final DownloadedBatch batch) throws Throwable {
+            long start = System.currentTimeMillis();
+            AtomicInteger finished = new AtomicInteger();
+            ProgressUpdater progress = ProgressUpdater.forHook(this.hook, () -> "Converting the song pack ⏱️ (" + finished.get() + "/" + batch.entries.size() + ")");
+            ChunkedOutput archive = new ChunkedOutput();
+            try {
+                ZipOutputStream zos = new ZipOutputStream(archive);
+                Set<String> names = new HashSet<>();
+                List<String> errors = new ArrayList<>();
+                int converted = 0;
+                for (BatchEntry entry : batch.entries) {
+                    EntryResult result = this.convert(entry, batch);
+                    finished.incrementAndGet();
+                    if (result.error != null) {
+                        errors.add(result.name + ": " + result.error);
+                        continue;
+                    }
+                    ZipEntry zipEntry = new ZipEntry(uniqueName(names, result.name));
+                    if (!result.name.endsWith(".nbs")) {
+                        //Audio files are already compressed
+                        CRC32 crc = new CRC32();
+                        crc.update(result.data);
+                        zipEntry.setMethod(ZipEntry.STORED);
+                        zipEntry.setSize(result.data.length);
+                        zipEntry.setCrc(crc.getValue());
+                    }
+                    zos.putNextEntry(zipEntry);
+                    zos.write(result.data);
+                    zos.closeEntry();
+                    converted++;
+                    if (archive.size() > batch.maxFileSize) throw new MessageException("The converted songs are too large to be uploaded in this server");
+                }
+                zos.finish(); //Closing the stream would release the pooled archive
+                if (converted == 0) {
+                    StringBuilder message = new StringBuilder("None of the songs could be converted");
+                    appendErrors(message, errors);
+                    throw new MessageException(message.toString());
+                }
+                if (archive.size() > batch.maxFileSize) throw new MessageException("The converted songs are too large to be uploaded in this server");
+                long duration = System.currentTimeMillis() - start;
+                log.info("Conversion of song pack {} with {} songs took {}ms", this.entry.fileName(), batch.entries.size(), duration);
+                return new BatchResult(archive, converted, batch.entries.size(), errors, duration);
+            } catch (Throwable t) {
+                archive.close();
+                throw t;
+            } finally {
+                progress.stop();
+            }
+        }
+
+        @Override
+        public void publish(final BatchResult result, final Runnable uploadHandler) {
+            String fileName = this.entry.fileName().substring(0, this.entry.fileName().lastIndexOf('.')) + " (converted).zip";
+            StringBuilder message = new StringBuilder("Converted " + result.converted + "/" + result.total + " songs in " + (result.duration / 1000) + "s ⏱️");
+            appendErrors(message, result.errors);
+            Metrics.BYTES.inc(result.archive.size(), "out");
+            Runnable uploaded = () -> {
+                result.archive.close();
+                uploadHandler.run();
+            };
+            this.hook.editOriginal(message.toString())
+                    .setAttachments(FileUpload.fromData(result.archive.toInputStream(), fileName))
+                    .queue(sent -> uploaded.run(), t -> uploaded.run());
+        }
+
+        @Override
+        public void onError(final Throwable t) {
+            if (t instanceof MessageException) {
+                this.hook.editOriginal(t.getMessage()).queue();
+            } else {
+                log.error("An error occurred while converting the song pack", t);
+                this.hook.editOriginal("An error occurred while converting the song pack").queue();
+            }
+        }
+
+        /**
+         * Convert a single song of the archive.<br>
+         * Errors of single songs are reported in the result message instead of failing the whole batch.
+         */
+        private EntryResult convert(final BatchEntry entry, final DownloadedBatch batch) {
+            if (entry.error != null) return EntryResult.failed(entry.name, entry.error);
+            try {
+                this.handle.check();
+                String baseName = entry.name.substring(0, entry.name.lastIndexOf('.'));
+                return switch (entry.type) {
+                    case NBS -> new EntryResult(baseName + "." + batch.encoder.getFileExtension(), this.render(entry, batch), null);
+                    case MIDI -> new EntryResult(baseName + ".nbs", MidiConverterCommand.convert(entry.data, this.handle), null);
+                };
+            } catch (CancellationException e) {
+                throw e;
+            } catch (MessageException e) {
+                this.handle.check(); //A timeout of the batch has to abort the whole batch
+                return EntryResult.failed(entry.name, e.getMessage());
+            } catch (Throwable t) {
+                log.error("Failed to convert {} of song pack {}", entry.name, this.entry.fileName(), t);
+                return EntryResult.failed(entry.name, "An error occurred while converting the song");
+            }
+        }
+
+        private byte[] render(final BatchEntry entry, final DownloadedBatch batch) throws Exception {
+            AudioEncoder.Settings settings = batch.encoder.selectSettings(entry.stats.lengthInSeconds(), batch.maxFileSize);
+            return Main.getRenderCache().get(batch.encoder.cacheKey(entry.data, Main.getSoundBank(), settings, null), () -> {
+                NbsSong song = (NbsSong) NoteBlockLib.readSong(entry.data, SongFormat.NBS);
+                try (ChunkedOutput output = batch.encoder.encode(song, Main.getSoundBank(), settings, this.handle)) {
+                    return output.toByteArray();
+                }
+            });
+        }
+    }
+
+    /**
+     * @param maxFileSize The upload limit of the guild in bytes
+     */
+    private record DownloadedBatch(List<BatchEntry> entries, AudioEncoder encoder, long maxFileSize) {
+    }
+
+    /**
+     * A song in the archive.
+     *
+     * @param stats The scanned song information of NBS files
+     * @param error The reason why the song can't be converted or {@code null} if it is valid
+     */
+    private record BatchEntry(String name, Type type, byte[] data, NbsScanner.SongStats stats, String error) {
+        private static BatchEntry of(final String name, final Type type, final byte[] data) {
+            if (type != Type.NBS) return new BatchEntry(name, type, data, null, null);
+            try {
+                return new BatchEntry(name, type, data, NbsScanner.validate(data), null);
+            } catch (MessageException e) {
+                return new BatchEntry(name, type, data, null, e.getMessage());
+            }
+        }
+
+        private long estimateMemory(final AudioEncoder encoder) {
+            if (this.error != null) return 0;
+            if (this.type == Type.NBS) return encoder.estimateMemory(this.stats, encoder.getDefaultSettings());
+            else return (long) this.data.length * 48; //Midi events are expanded into note objects
+        }
+
+
+        private enum Type {
+            NBS, MIDI;
+
+            private static Type of(final String fileName) {
+                String lowerName = fileName.toLowerCase(Locale.ROOT);
+                if (lowerName.endsWith(".nbs")) return NBS;
+                if (lowerName.endsWith(".mid") || lowerName.endsWith(".midi")) return MIDI;
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @param name  The file name of the result or the name of the song if it failed
+     * @param data  The converted song
+     * @param error The reason why the song could not be converted or {@code null} if it was converted
+     */
+    private record EntryResult(String name, byte[] data, String error) {
+        private static EntryResult failed(final String name, final String error) {
+            return new EntryResult(name, null, error);
+        }
+    }
+
+    private record BatchResult(ChunkedOutput archive, int converted, int total, List<String> errors, long duration) {
+    }
+
+}
@@ -2,8 +2,10 @@ package net.lenni0451.noteblockbot.commands.impl;
 
 import com.google.common.hash.Hashing;
 import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
+import net.dv8tion.jda.api.interactions.InteractionHook;
 import net.dv8tion.jda.api.interactions.commands.OptionType;
 import net.dv8tion.jda.api.utils.AttachedFile;
 import net.lenni0451.noteblockbot.Main;
@@ -13,15 +15,25 @@ import net.lenni0451.noteblockbot.commands.annotations.Command;
 import net.lenni0451.noteblockbot.commands.annotations.RateLimited;
 import net.lenni0451.noteblockbot.commands.annotations.Required;
 import net.lenni0451.noteblockbot.data.Config;
+import net.lenni0451.noteblockbot.data.CostModel;
+import net.lenni0451.noteblockbot.data.InteractionLogger;
+import net.lenni0451.noteblockbot.data.RateLimiter;
+import net.lenni0451.noteblockbot.data.RenderCache;
 import net.lenni0451.noteblockbot.data.SQLiteDB;
+import net.lenni0451.noteblockbot.data.TaskJournal;
+import net.lenni0451.noteblockbot.metrics.Metrics;
+import net.lenni0451.noteblockbot.task.PipelineJob;
+import net.lenni0451.noteblockbot.task.TaskHandle;
+import net.lenni0451.noteblockbot.task.TaskQueue;
+import net.lenni0451.noteblockbot.utils.MessageException;
 import net.lenni0451.noteblockbot.utils.NetUtils;
 import net.raphimc.noteblocklib.NoteBlockLib;
 import net.raphimc.noteblocklib.format.SongFormat;
 import net.raphimc.noteblocklib.model.song.Song;
 
 import java.io.ByteArrayOutputStream;
-import java.sql.PreparedStatement;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 @Slf4j
 public class MidiConverterCommand extends CommandParser {
@@ -35,39 +47,130 @@ public class MidiConverterCommand extends CommandParser {
         this.validateAttachment(attachment, Config.SongLimits.maxMidiFileSize, "mid", "midi");
         log.info("User {} uploaded midi file {}", event.getUser().getAsTag(), attachment.getFileName());
         event.reply("Converting the midi file 🎶...").setEphemeral(true).queue();
-        Main.getTaskQueue().add(event.getGuild().getIdLong(), List.of(() -> {
-            try {
-                long time = System.currentTimeMillis();
-                byte[] midiData = NetUtils.get(attachment.getUrl()).getContent().getAsBytes();
-                Song song = NoteBlockLib.readSong(midiData, SongFormat.MIDI);
-                song = NoteBlockLib.convertSong(song, SongFormat.NBS);
-                ByteArrayOutputStream nbsData = new ByteArrayOutputStream();
-                NoteBlockLib.writeSong(song, nbsData);
-                time = System.currentTimeMillis() - time;
-                log.info("Conversion of midi file {} took {}ms", attachment.getFileName(), time);
-
-                String fileName = attachment.getFileName().substring(0, attachment.getFileName().length() - attachment.getFileExtension().length() - 1);
-                event.getHook().editOriginal("Conversion finished in " + (time / 1000) + "s ⏱️").setAttachments(AttachedFile.fromData(nbsData.toByteArray(), fileName + ".nbs")).queue();
-                if (Config.logInteractions) {
-                    try (PreparedStatement statement = Main.getDb().prepare("INSERT INTO \"" + SQLiteDB.MIDI_CONVERSIONS + "\" (\"GuildId\", \"UserId\", \"UserName\", \"Date\", \"FileName\", \"FileSize\", \"FileHash\", \"ConversionDuration\") VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
-                        statement.setLong(1, event.getGuild().getIdLong());
-                        statement.setLong(2, event.getUser().getIdLong());
-                        statement.setString(3, event.getUser().getAsTag());
-                        statement.setString(4, event.getTimeCreated().toString());
-                        statement.setString(5, attachment.getFileName());
-                        statement.setLong(6, attachment.getSize());
-                        statement.setString(7, Hashing.md5().hashBytes(midiData).toString());
-                        statement.setLong(8, time);
-                        statement.execute();
-                    } catch (Throwable t) {
-                        log.error("An error occurred while saving the midi conversion", t);
-                    }
-                }
-            } catch (Throwable t) {
+        submit(event.getHook(), this.createJournalEntry(event, TaskJournal.MIDI, attachment, ""));
+    }
+
+    /**
+     * Resume a conversion which has been interrupted by a restart.
+     *
+     * @param jda   The JDA instance
+     * @param entry The pending conversion job
+     */
+    public static void resume(final JDA jda, final TaskJournal.Entry entry) {
+        log.info("Resuming conversion of midi file {}", entry.fileName());
+        submit(InteractionHook.from(jda, entry.interactionToken()), entry);
+    }
+
+    private static void submit(final InteractionHook hook, final TaskJournal.Entry entry) {
+        try {
+            Main.getPipeline().submit(entry.guildId(), List.of(new ConvertJob(hook, entry, new TaskHandle(Config.Timeouts.midiConversion, entry::isExpired))), () -> {});
+        } catch (RejectedExecutionException e) {
+            hook.editOriginal("The bot is currently busy. Please try again later 🐌").queue();
+        }
+    }
+
+    /**
+     * Convert a midi file to a NBS file.<br>
+     * The result is cached, so the same midi file is only converted once.
+     *
+     * @param midiData The raw data of the midi file
+     * @param handle   The handle of the job
+     * @return The raw data of the NBS file
+     * @throws Exception If the conversion failed
+     */
+    static byte[] convert(final byte[] midiData, final TaskHandle handle) throws Exception {
+        return Main.getRenderCache().get(RenderCache.key("midi", midiData), () -> convertSong(midiData, handle));
+    }
+
+    private static byte[] convertSong(final byte[] midiData, final TaskHandle handle) throws Exception {
+        Song song = NoteBlockLib.readSong(midiData, SongFormat.MIDI);
+        handle.check();
+        song = NoteBlockLib.convertSong(song, SongFormat.NBS);
+        ByteArrayOutputStream convertedData = new ByteArrayOutputStream();
+        NoteBlockLib.writeSong(song, convertedData);
+        return convertedData.toByteArray();
+    }
+
+
+    private record ConvertJob(InteractionHook hook, TaskJournal.Entry entry, TaskHandle handle) implements PipelineJob<DownloadedMidi, ConvertResult> {
+        @Override
+        public TaskJournal.Entry journalEntry() {
+            return this.entry;
+        }
+
+        @Override
+        public TaskQueue.Priority priority() {
+            return TaskQueue.Priority.LIGHT;
+        }
+
+        @Override
+        public DownloadedMidi download() throws Throwable {
+            byte[] midiData = NetUtils.getBytes(this.entry.url(), Config.SongLimits.maxMidiFileSize);
+            if (!RateLimiter.adjust(this.entry.userId(), this.entry.guildId(), RateLimiter.REQUEST_UNITS, RateLimiter.cost(CostModel.estimateMidiConversion(midiData.length)))) {
+                throw new MessageException("The midi file is too large for your remaining rate limit. Please wait a bit before sending it again 🐌");
+            }
+            return new DownloadedMidi(midiData, RenderCache.key("midi", midiData));
+        }
+
+        @Override
+        public ConvertResult lookup(final DownloadedMidi input) {
+            byte[] nbsData = Main.getRenderCache().get(input.cacheKey);
+            if (nbsData == null) return null;
+            return new ConvertResult(input, nbsData, true, 0);
+        }
+
+        @Override
+        public long estimateMemory(final DownloadedMidi input) {
+            return (long) input.midiData.length * 48; //Midi events are expanded into note objects
+        }
+
+        @Override
+        public ConvertResult process(final DownloadedMidi input) throws Throwable {
+            long time = System.currentTimeMillis();
+            byte[] nbsData = convertSong(input.midiData, this.handle);
+            time = System.currentTimeMillis() - time;
+            log.info("Conversion of midi file {} took {}ms", this.entry.fileName(), time);
+            return new ConvertResult(input, nbsData, false, time);
+        }
+
+        @Override
+        public void publish(final ConvertResult result, final Runnable uploadHandler) {
+            String fileName = this.entry.fileName().substring(0, this.entry.fileName().lastIndexOf('.'));
+            this.hook.editOriginal("Conversion finished in " + (result.duration / 1000) + "s ⏱️").setAttachments(AttachedFile.fromData(result.nbsData, fileName + ".nbs"))
+                    .queue(sent -> uploadHandler.run(), t -> uploadHandler.run());
+            if (!result.cached) Main.getRenderCache().put(result.midi.cacheKey, result.nbsData);
+            Metrics.BYTES.inc(result.nbsData.length, "out");
+            Main.getInteractionLogger().log(new InteractionLogger.Interaction(SQLiteDB.MIDI_CONVERSIONS)
+                    .set("GuildId", this.entry.guildId())
+                    .set("UserId", this.entry.userId())
+                    .set("UserName", this.entry.userName())
+                    .set("Date", this.entry.date())
+                    .set("Timestamp", this.entry.timestamp())
+                    .set("FileName", this.entry.fileName())
+                    .set("FileSize", this.entry.fileSize())
+                    .set("FileHash", Hashing.md5().hashBytes(result.midi.midiData).toString())
+                    .set("ConversionDuration", result.duration)
+                    .set("Cached", result.cached ? 1 : 0));
+        }
+
+        @Override
+        public void onError(final Throwable t) {
+            if (t instanceof MessageException) {
+                this.hook.editOriginal(t.getMessage()).queue();
+            } else {
                 log.error("An error occurred while converting the midi file", t);
-                event.getHook().editOriginal("An error occurred while converting the midi file").queue();
+                this.hook.editOriginal("An error occurred while converting the midi file").queue();
             }
-        }), () -> {});
+        }
+    }
+
+    /**
+     * @param cacheKey The key of the converted song in the render cache
+     */
+    private record DownloadedMidi(byte[] midiData, String cacheKey) {
+    }
+
+    private record ConvertResult(DownloadedMidi midi, byte[] nbsData, boolean cached, long duration) {
     }
 
 }
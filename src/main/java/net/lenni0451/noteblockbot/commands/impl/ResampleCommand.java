@@ -2,8 +2,10 @@ package net.lenni0451.noteblockbot.commands.impl;
 
 import com.google.common.hash.Hashing;
 import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
+import net.dv8tion.jda.api.interactions.InteractionHook;
 import net.dv8tion.jda.api.interactions.commands.OptionType;
 import net.dv8tion.jda.api.utils.AttachedFile;
 import net.lenni0451.noteblockbot.Main;
@@ -13,7 +15,18 @@ import net.lenni0451.noteblockbot.commands.annotations.Command;
 import net.lenni0451.noteblockbot.commands.annotations.RateLimited;
 import net.lenni0451.noteblockbot.commands.annotations.Required;
 import net.lenni0451.noteblockbot.data.Config;
+import net.lenni0451.noteblockbot.data.CostModel;
+import net.lenni0451.noteblockbot.data.InteractionLogger;
+import net.lenni0451.noteblockbot.data.RateLimiter;
+import net.lenni0451.noteblockbot.data.RenderCache;
 import net.lenni0451.noteblockbot.data.SQLiteDB;
+import net.lenni0451.noteblockbot.data.TaskJournal;
+import net.lenni0451.noteblockbot.metrics.Metrics;
+import net.lenni0451.noteblockbot.task.PipelineJob;
+import net.lenni0451.noteblockbot.task.TaskHandle;
+import net.lenni0451.noteblockbot.task.TaskQueue;
+import net.lenni0451.noteblockbot.utils.MessageException;
+import net.lenni0451.noteblockbot.utils.NbsScanner;
 import net.lenni0451.noteblockbot.utils.NetUtils;
 import net.raphimc.noteblocklib.NoteBlockLib;
 import net.raphimc.noteblocklib.format.SongFormat;
@@ -23,8 +36,8 @@ import net.raphimc.noteblocklib.util.SongResampler;
 import net.raphimc.noteblocktool.util.MinecraftOctaveClamp;
 
 import java.io.ByteArrayOutputStream;
-import java.sql.PreparedStatement;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 @Slf4j
 public class ResampleCommand extends CommandParser {
@@ -45,54 +58,132 @@ public class ResampleCommand extends CommandParser {
         } else {
             log.info("User {} uploaded nbs file {}", event.getUser().getAsTag(), attachment.getFileName());
             event.reply("Resampling the nbs file 🎶...").setEphemeral(true).queue();
-            Main.getTaskQueue().add(event.getGuild().getIdLong(), List.of(() -> {
-                try {
-                    long time = System.currentTimeMillis();
-                    byte[] nbsData = NetUtils.get(attachment.getUrl()).getContent().getAsBytes();
-                    NbsSong song = (NbsSong) NoteBlockLib.readSong(nbsData, SongFormat.NBS);
-                    if (octaveClamp != null) {
-                        song.getNotes().forEach(octaveClamp::correctNote);
-                    }
-                    if (speed != null) {
-                        SongResampler.changeTickSpeed(song, speed);
-                    }
-                    NbsSong resampledSong = (NbsSong) NoteBlockLib.convertSong(song, SongFormat.NBS);
-
-                    ByteArrayOutputStream resampledData = new ByteArrayOutputStream();
-                    this.applyDescription(resampledSong);
-                    NoteBlockLib.writeSong(resampledSong, resampledData);
-                    time = System.currentTimeMillis() - time;
-                    log.info("Resampling of nbs file {} took {}ms", attachment.getFileName(), time);
-
-                    event.getHook().editOriginal("Resampling finished in " + (time / 1000) + "s ⏱️").setAttachments(AttachedFile.fromData(resampledData.toByteArray(), attachment.getFileName())).queue();
-                    if (Config.logInteractions) {
-                        try (PreparedStatement statement = Main.getDb().prepare("INSERT INTO \"" + SQLiteDB.RESAMPLES + "\" (\"GuildId\", \"UserId\", \"UserName\", \"Date\", \"FileName\", \"FileSize\", \"FileHash\", \"ConversionDuration\") VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
-                            statement.setLong(1, event.getGuild().getIdLong());
-                            statement.setLong(2, event.getUser().getIdLong());
-                            statement.setString(3, event.getUser().getAsTag());
-                            statement.setString(4, event.getTimeCreated().toString());
-                            statement.setString(5, attachment.getFileName());
-                            statement.setLong(6, attachment.getSize());
-                            statement.setString(7, Hashing.md5().hashBytes(nbsData).toString());
-                            statement.setLong(8, time);
-                            statement.execute();
-                        } catch (Throwable t) {
-                            log.error("An error occurred while saving the midi conversion", t);
-                        }
-                    }
-                } catch (Throwable t) {
-                    log.error("An error occurred while resampling the nbs file", t);
-                    event.getHook().editOriginal("An error occurred while resampling the nbs file").queue();
-                }
-            }), () -> {});
+            String parameters = (speed == null ? "" : speed) + ";" + (octaveClamp == null ? "" : octaveClamp.name());
+            submit(event.getHook(), this.createJournalEntry(event, TaskJournal.RESAMPLE, attachment, parameters), speed, octaveClamp);
         }
     }
 
-    private void applyDescription(final Song song) {
+    /**
+     * Resume a resampling which has been interrupted by a restart.
+     *
+     * @param jda   The JDA instance
+     * @param entry The pending resample job
+     */
+    public static void resume(final JDA jda, final TaskJournal.Entry entry) {
+        log.info("Resuming resampling of nbs file {}", entry.fileName());
+        String[] parameters = entry.parameters().split(";", -1);
+        Integer speed = parameters[0].isEmpty() ? null : Integer.valueOf(parameters[0]);
+        MinecraftOctaveClamp octaveClamp = parameters[1].isEmpty() ? null : MinecraftOctaveClamp.valueOf(parameters[1]);
+        submit(InteractionHook.from(jda, entry.interactionToken()), entry, speed, octaveClamp);
+    }
+
+    private static void submit(final InteractionHook hook, final TaskJournal.Entry entry, final Integer speed, final MinecraftOctaveClamp octaveClamp) {
+        try {
+            Main.getPipeline().submit(entry.guildId(), List.of(new ResampleJob(hook, entry, speed, octaveClamp, new TaskHandle(Config.Timeouts.resample, entry::isExpired))), () -> {});
+        } catch (RejectedExecutionException e) {
+            hook.editOriginal("The bot is currently busy. Please try again later 🐌").queue();
+        }
+    }
+
+    private static void applyDescription(final Song song) {
         String description = song.getDescriptionOr("");
         if (!description.isEmpty()) description += "\n";
         description += "Resampled using NoteBlockBot";
         song.setDescription(description);
     }
 
+
+    private record ResampleJob(InteractionHook hook, TaskJournal.Entry entry, Integer speed, MinecraftOctaveClamp octaveClamp, TaskHandle handle) implements PipelineJob<DownloadedNbs, ResampleResult> {
+        @Override
+        public TaskJournal.Entry journalEntry() {
+            return this.entry;
+        }
+
+        @Override
+        public TaskQueue.Priority priority() {
+            return TaskQueue.Priority.LIGHT;
+        }
+
+        @Override
+        public DownloadedNbs download() throws Throwable {
+            byte[] nbsData = NetUtils.getBytes(this.entry.url(), Config.SongLimits.maxNbsFileSize);
+            NbsScanner.validate(nbsData);
+            if (!RateLimiter.adjust(this.entry.userId(), this.entry.guildId(), RateLimiter.REQUEST_UNITS, RateLimiter.cost(CostModel.estimateResample(nbsData.length)))) {
+                throw new MessageException("The song is too large for your remaining rate limit. Please wait a bit before sending it again 🐌");
+            }
+            return new DownloadedNbs(nbsData, RenderCache.key("resample", nbsData, this.speed, this.octaveClamp));
+        }
+
+        @Override
+        public ResampleResult lookup(final DownloadedNbs input) {
+            byte[] resampledData = Main.getRenderCache().get(input.cacheKey);
+            if (resampledData == null) return null;
+            return new ResampleResult(input, resampledData, true, 0);
+        }
+
+        @Override
+        public long estimateMemory(final DownloadedNbs input) {
+            return (long) input.nbsData.length * 64; //The parsed and the resampled song are both kept in memory
+        }
+
+        @Override
+        public ResampleResult process(final DownloadedNbs input) throws Throwable {
+            long time = System.currentTimeMillis();
+            NbsSong song = (NbsSong) NoteBlockLib.readSong(input.nbsData, SongFormat.NBS);
+            if (this.octaveClamp != null) {
+                song.getNotes().forEach(this.octaveClamp::correctNote);
+            }
+            if (this.speed != null) {
+                SongResampler.changeTickSpeed(song, this.speed);
+            }
+            this.handle.check();
+            NbsSong resampledSong = (NbsSong) NoteBlockLib.convertSong(song, SongFormat.NBS);
+
+            ByteArrayOutputStream resampledOutput = new ByteArrayOutputStream();
+            applyDescription(resampledSong);
+            NoteBlockLib.writeSong(resampledSong, resampledOutput);
+            time = System.currentTimeMillis() - time;
+            log.info("Resampling of nbs file {} took {}ms", this.entry.fileName(), time);
+            return new ResampleResult(input, resampledOutput.toByteArray(), false, time);
+        }
+
+        @Override
+        public void publish(final ResampleResult result, final Runnable uploadHandler) {
+            this.hook.editOriginal("Resampling finished in " + (result.duration / 1000) + "s ⏱️").setAttachments(AttachedFile.fromData(result.resampledData, this.entry.fileName()))
+                    .queue(sent -> uploadHandler.run(), t -> uploadHandler.run());
+            if (!result.cached) Main.getRenderCache().put(result.nbs.cacheKey, result.resampledData);
+            Metrics.BYTES.inc(result.resampledData.length, "out");
+            Main.getInteractionLogger().log(new InteractionLogger.Interaction(SQLiteDB.RESAMPLES)
+                    .set("GuildId", this.entry.guildId())
+                    .set("UserId", this.entry.userId())
+                    .set("UserName", this.entry.userName())
+                    .set("Date", this.entry.date())
+                    .set("Timestamp", this.entry.timestamp())
+                    .set("FileName", this.entry.fileName())
+                    .set("FileSize", this.entry.fileSize())
+                    .set("FileHash", Hashing.md5().hashBytes(result.nbs.nbsData).toString())
+                    .set("ConversionDuration", result.duration)
+                    .set("Cached", result.cached ? 1 : 0));
+        }
+
+        @Override
+        public void onError(final Throwable t) {
+            if (t instanceof MessageException) {
+                this.hook.editOriginal(t.getMessage()).queue();
+            } else {
+                log.error("An error occurred while resampling the nbs file", t);
+                this.hook.editOriginal("An error occurred while resampling the nbs file").queue();
+            }
+        }
+    }
+
+    /**
+     * @param cacheKey The key of the resampled song in the render cache
+     */
+    private record DownloadedNbs(byte[] nbsData, String cacheKey) {
+    }
+
+    private record ResampleResult(DownloadedNbs nbs, byte[] resampledData, boolean cached, long duration) {
+    }
+
 }
@@ -0,0 +1,42 @@
+package net.lenni0451.noteblockbot.commands.impl;
+
+import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
+import net.dv8tion.jda.api.interactions.commands.OptionType;
+import net.lenni0451.noteblockbot.Main;
+import net.lenni0451.noteblockbot.commands.CommandParser;
+import net.lenni0451.noteblockbot.commands.annotations.Arg;
+import net.lenni0451.noteblockbot.commands.annotations.Command;
+import net.lenni0451.noteblockbot.data.Config;
+import net.lenni0451.noteblockbot.data.GuildSettings;
+import net.lenni0451.noteblockbot.export.OutputFormat;
+import net.lenni0451.noteblockbot.utils.MessageException;
+
+import java.sql.SQLException;
+import java.util.Locale;
+
+public class SettingsCommand extends CommandParser {
+
+    @Command(name = "settings", description = "Change the settings of the bot in this server", permissions = Permission.MANAGE_SERVER)
+    public void run(
+            SlashCommandInteractionEvent event,
+            @Arg(type = OptionType.INTEGER, name = "preview-length", description = "Only render a preview of this many seconds for longer songs (0 to disable)") Integer previewLength,
+            @Arg(type = OptionType.STRING, name = "format", description = "The audio format of rendered songs") OutputFormat format
+    ) throws SQLException {
+        long guildId = event.getGuild().getIdLong();
+        if (previewLength != null) {
+            if (previewLength < 0 || previewLength > Config.Preview.maxLength) {
+                throw new MessageException("The preview length must be between 0 and " + Config.Preview.maxLength + " seconds");
+            }
+            Main.getGuildSettings().setPreviewLength(guildId, previewLength);
+        }
+        if (format != null) Main.getGuildSettings().setFormat(guildId, format);
+
+        GuildSettings.Settings settings = Main.getGuildSettings().get(guildId);
+        StringBuilder message = new StringBuilder("**Settings**");
+        message.append("\n**Preview:** ").append(settings.previewLength() <= 0 ? "disabled" : "first " + settings.previewLength() + "s of longer songs");
+        message.append("\n**Format:** ").append(settings.format().name().toLowerCase(Locale.ROOT));
+        event.reply(message.toString()).setEphemeral(true).queue();
+    }
+
+}
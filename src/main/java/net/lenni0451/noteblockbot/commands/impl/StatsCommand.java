@@ -0,0 +1,66 @@
+package net.lenni0451.noteblockbot.commands.impl;
+
+import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
+import net.dv8tion.jda.api.interactions.commands.OptionType;
+import net.lenni0451.noteblockbot.Main;
+import net.lenni0451.noteblockbot.commands.CommandParser;
+import net.lenni0451.noteblockbot.commands.annotations.Arg;
+import net.lenni0451.noteblockbot.commands.annotations.Command;
+import net.lenni0451.noteblockbot.data.InteractionStats;
+
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Map;
+
+public class StatsCommand extends CommandParser {
+
+    private static final Map<String, String> TYPE_NAMES = Map.of(
+            "mp3", "MP3 renders",
+            "midi", "MIDI conversions",
+            "resample", "Resamples"
+    );
+
+    @Command(name = "stats", description = "Show statistics about the usage of the bot in this server", permissions = Permission.MANAGE_SERVER)
+    public void run(
+            SlashCommandInteractionEvent event,
+            @Arg(type = OptionType.STRING, name = "window", description = "The time window of the statistics (default: week)") InteractionStats.Window window
+    ) throws SQLException {
+        if (window == null) window = InteractionStats.Window.WEEK;
+        InteractionStats.Stats stats = Main.getInteractionStats().query(event.getGuild().getIdLong(), window);
+
+        StringBuilder message = new StringBuilder("**Statistics (" + window.name().toLowerCase(Locale.ROOT) + ")**");
+        if (stats.types().isEmpty()) {
+            message.append("\nNo interactions have been logged yet");
+        }
+        for (Map.Entry<String, InteractionStats.TypeStats> entry : stats.types().entrySet()) {
+            InteractionStats.TypeStats typeStats = entry.getValue();
+            message.append("\n**").append(TYPE_NAMES.getOrDefault(entry.getKey(), entry.getKey())).append(":** ")
+                    .append(typeStats.getCount()).append(" (")
+                    .append(formatBytes(typeStats.getBytes())).append(", ")
+                    .append("p50 ").append(formatDuration(typeStats.getDurationPercentile(0.5))).append(", ")
+                    .append("p95 ").append(formatDuration(typeStats.getDurationPercentile(0.95))).append(")");
+        }
+        if (!stats.topUsers().isEmpty()) {
+            message.append("\n**Top users:**");
+            for (int i = 0; i < stats.topUsers().size(); i++) {
+                Map.Entry<Long, Long> user = stats.topUsers().get(i);
+                message.append("\n").append(i + 1).append(". <@").append(user.getKey()).append("> (").append(user.getValue()).append(")");
+            }
+        }
+        event.reply(message.toString()).setEphemeral(true).queue();
+    }
+
+    private static String formatBytes(final long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format(Locale.ROOT, "%.1f KB", bytes / 1024D);
+        return String.format(Locale.ROOT, "%.1f MB", bytes / 1024D / 1024D);
+    }
+
+    private static String formatDuration(final long millis) {
+        if (millis < 0) return ">5m";
+        if (millis < 1000) return "≤" + millis + "ms";
+        return "≤" + (millis / 1000) + "s";
+    }
+
+}
@@ -9,7 +9,7 @@ import net.lenni0451.optconfig.annotations.Section;
 public class Config {
 
     @Option
-    @Description({"Log all user interactions with the bot", "The logs are written into the sqlite database", "Currently they are not used but later they could be used for statistics"})
+    @Description({"Log all user interactions with the bot", "The logs are written into the sqlite database", "They are used for the /stats command and to calibrate the estimated processing cost of the rate limits"})
     public static boolean logInteractions = true;
 
     @Section(name = "SongLimits")
@@ -20,22 +20,175 @@ public class Config {
 
         @Option("MaxNbsLength")
         @Description("The maximum length of a NBS file in seconds")
-        public static int maxNbsLength = 60 * 20; //TODO
+        public static int maxNbsLength = 60 * 20;
+
+        @Option("MaxNbsNotes")
+        @Description("The maximum amount of notes in a NBS file")
+        public static int maxNbsNotes = 500_000;
 
         @Option("MaxMidiFileSize")
         @Description("The maximum file size for converting MIDI files to NBS in bytes")
         public static int maxMidiFileSize = 1024 * 1024 * 20;
     }
 
+    @Section(name = "TaskQueue")
+    public static class TaskQueue {
+        @Option("WorkerThreads")
+        @Description({"The amount of worker threads used to execute tasks", "Set to 0 to use one thread per available CPU core"})
+        public static int workerThreads = 0;
+
+        @Option("MaxConcurrentTasksPerGuild")
+        @Description({"The maximum amount of tasks of a single guild that can be executed at the same time", "This prevents one guild from occupying all worker threads", "With more than 1, songs of the same guild can finish and be replied to out of order"})
+        public static int maxConcurrentTasksPerGuild = 1;
+
+        @Option("MaxQueuedTasks")
+        @Description({"The maximum amount of tasks that can wait for execution", "Downloads are paused until there is space in the queue again"})
+        public static int maxQueuedTasks = 64;
+    }
+
+    @Section(name = "Memory")
+    public static class Memory {
+        @Option("ProcessingBudget")
+        @Description({"The maximum estimated heap usage of all jobs that are processed at the same time in bytes", "Jobs wait until enough memory is available", "Set to 0 to use 60% of the maximum heap size"})
+        public static long processingBudget = 0;
+    }
+
+    @Section(name = "Pipeline")
+    public static class Pipeline {
+        @Option("IoThreads")
+        @Description("The amount of threads used for downloading and uploading files")
+        public static int ioThreads = 16;
+
+        @Option("IoQueueSize")
+        @Description({"The maximum amount of I/O operations that can wait for execution", "New requests are rejected when the queue is full"})
+        public static int ioQueueSize = 64;
+
+        @Option("ShutdownTimeout")
+        @Description({"The maximum time in seconds to wait for running jobs when the bot is stopped", "Unfinished jobs are resumed on the next start"})
+        public static int shutdownTimeout = 60;
+    }
+
+    @Section(name = "Timeouts")
+    public static class Timeouts {
+        @Option("Render")
+        @Description({"The maximum time in seconds a song can be rendered before it is aborted", "Set to 0 to disable the timeout"})
+        public static int render = 300;
+
+        @Option("MidiConversion")
+        @Description({"The maximum time in seconds a midi file can be converted before it is aborted", "Set to 0 to disable the timeout"})
+        public static int midiConversion = 60;
+
+        @Option("Resample")
+        @Description({"The maximum time in seconds a song can be resampled before it is aborted", "Set to 0 to disable the timeout"})
+        public static int resample = 60;
+
+        @Option("Batch")
+        @Description({"The maximum time in seconds a song pack can be converted before it is aborted", "Set to 0 to disable the timeout"})
+        public static int batch = 600;
+    }
+
+    @Section(name = "Progress")
+    public static class Progress {
+        @Option("UpdateInterval")
+        @Description({"The interval in seconds in which the progress of long running jobs is shown", "Jobs which finish within the interval don't show any progress", "Set to 0 to disable progress updates"})
+        public static int updateInterval = 5;
+    }
+
+    @Section(name = "Preview")
+    public static class Preview {
+        @Option("DefaultLength")
+        @Description("The length of a preview in seconds when it is requested without a time range")
+        public static int defaultLength = 30;
+
+        @Option("MaxLength")
+        @Description("The maximum length of a preview in seconds")
+        public static int maxLength = 120;
+    }
+
+    @Section(name = "ParallelRender")
+    public static class ParallelRender {
+        @Option("MinLength")
+        @Description({"The segments of songs longer than this amount of seconds are rendered on multiple cores", "Set to 0 to always render songs on a single core"})
+        public static int minLength = 180;
+
+        @Option("SegmentLength")
+        @Description({"Songs are rendered in segments of this length in seconds", "Only the segments which are currently rendered are kept in memory"})
+        public static int segmentLength = 10;
+
+        @Option("Parallelism")
+        @Description({"The maximum amount of segments of all songs that are rendered at the same time", "A single song renders at most this amount of segments ahead", "Set to 0 to use one thread per available CPU core"})
+        public static int parallelism = 0;
+    }
+
+    @Section(name = "Opus")
+    public static class Opus {
+        @Option("Bitrate")
+        @Description({"The bitrate of Opus renders in kbit/s", "Lower bitrates are used if the song would not fit into the upload limit"})
+        public static int bitrate = 64;
+    }
+
+    @Section(name = "Batch")
+    public static class Batch {
+        @Option("MaxArchiveSize")
+        @Description("The maximum file size of a ZIP archive for the batch command in bytes")
+        public static int maxArchiveSize = 1024 * 1024 * 25;
+
+        @Option("MaxEntries")
+        @Description("The maximum amount of songs in a ZIP archive")
+        public static int maxEntries = 50;
+
+        @Option("MaxUncompressedSize")
+        @Description({"The maximum size of all files in a ZIP archive after decompressing them in bytes", "Decompressing is aborted as soon as the limit is reached"})
+        public static long maxUncompressedSize = 1024 * 1024 * 100;
+    }
+
+    @Section(name = "RenderCache")
+    public static class RenderCache {
+        @Option("Enabled")
+        @Description("Cache the results of renders and conversions to skip them when the same file is uploaded again")
+        public static boolean enabled = true;
+
+        @Option("Directory")
+        @Description("The directory where cached results are stored")
+        public static String directory = "cache";
+
+        @Option("MaxMemorySize")
+        @Description("The maximum size of all results cached in memory in bytes")
+        public static long maxMemorySize = 1024 * 1024 * 64;
+
+        @Option("MaxDiskSize")
+        @Description({"The maximum size of all results cached on disk in bytes", "The least recently used results are deleted first"})
+        public static long maxDiskSize = 1024L * 1024 * 1024;
+    }
+
+    @Section(name = "Metrics")
+    public static class Metrics {
+        @Option("Enabled")
+        @Description("Expose metrics in the Prometheus text format on /metrics")
+        public static boolean enabled = true;
+
+        @Option("BindAddress")
+        @Description("The address the metrics server binds to")
+        public static String bindAddress = "127.0.0.1";
+
+        @Option("Port")
+        @Description("The port the metrics server listens on")
+        public static int port = 9464;
+    }
+
     @Section(name = "RateLimits")
     public static class RateLimits {
         @Option("UserMaxRequestsPerMinute")
-        @Description("The maximum amount of user requests per minute")
+        @Description({"The maximum amount of user requests per minute", "Songs that take longer to render count as multiple requests"})
         public static int userMaxRequestsPerMinute = 3;
 
         @Option("GuildMaxRequestsPerMinute")
-        @Description("The maximum amount of guild requests per minute")
+        @Description({"The maximum amount of guild requests per minute", "Songs that take longer to render count as multiple requests"})
         public static int guildMaxRequestsPerMinute = 10;
+
+        @Option("RequestCost")
+        @Description({"The estimated processing time in milliseconds that counts as one request", "The estimation is calibrated using the logged interactions"})
+        public static int requestCost = 10_000;
     }
 
 }
@@ -0,0 +1,145 @@
+package net.lenni0451.noteblockbot.data;
+
+import lombok.extern.slf4j.Slf4j;
+import net.lenni0451.noteblockbot.utils.NbsScanner;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the processing time of requests.<br>
+ * The estimation is a linear model which is calibrated from the conversion durations logged in the database.
+ * Until enough interactions are logged the default coefficients are used.
+ */
+@Slf4j
+public class CostModel {
+
+    private static final int CALIBRATION_SAMPLES = 2000;
+    private static final int MIN_CALIBRATION_SAMPLES = 20;
+    private static final double DEFAULT_RENDER_MS_PER_SECOND = 150;
+    private static final double DEFAULT_RENDER_MS_PER_NOTE = 0.05;
+    private static final double DEFAULT_RENDER_MS_PER_BYTE = 0.02;
+    private static final double DEFAULT_MIDI_MS_PER_BYTE = 0.01;
+    private static final double DEFAULT_RESAMPLE_MS_PER_BYTE = 0.005;
+
+    private static volatile double renderMsPerSecond = DEFAULT_RENDER_MS_PER_SECOND;
+    private static volatile double renderMsPerNote = DEFAULT_RENDER_MS_PER_NOTE;
+    private static volatile double renderMsPerByte = DEFAULT_RENDER_MS_PER_BYTE;
+    private static volatile double midiMsPerByte = DEFAULT_MIDI_MS_PER_BYTE;
+    private static volatile double resampleMsPerByte = DEFAULT_RESAMPLE_MS_PER_BYTE;
+
+    /**
+     * Calibrate the model now and then periodically every hour.
+     *
+     * @param db The database containing the logged interactions
+     */
+    public static void startCalibration(final SQLiteDB db) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "CostModel-Calibration");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> calibrate(db), 0, 1, TimeUnit.HOURS);
+    }
+
+    /**
+     * Estimate the rendering time of a song before it has been downloaded.
+     *
+     * @param fileSize The size of the song file in bytes
+     * @return The estimated processing time in milliseconds
+     */
+    public static long estimateRender(final long fileSize) {
+        return (long) (fileSize * renderMsPerByte);
+    }
+
+    /**
+     * Estimate the rendering time of a scanned song.
+     *
+     * @param stats The scanned song information
+     * @return The estimated processing time in milliseconds
+     */
+    public static long estimateRender(final NbsScanner.SongStats stats) {
+        return (long) (stats.lengthInSeconds() * renderMsPerSecond + stats.noteCount() * renderMsPerNote);
+    }
+
+    public static long estimateMidiConversion(final long fileSize) {
+        return (long) (fileSize * midiMsPerByte);
+    }
+
+    public static long estimateResample(final long fileSize) {
+        return (long) (fileSize * resampleMsPerByte);
+    }
+
+    private static void calibrate(final SQLiteDB db) {
+        try {
+            calibrateRender(db);
+            midiMsPerByte = calibrateFileSize(db, SQLiteDB.MIDI_CONVERSIONS, DEFAULT_MIDI_MS_PER_BYTE);
+            resampleMsPerByte = calibrateFileSize(db, SQLiteDB.RESAMPLES, DEFAULT_RESAMPLE_MS_PER_BYTE);
+            log.info("Calibrated cost model: render {}ms/s + {}ms/note ({}ms/byte), midi {}ms/byte, resample {}ms/byte", renderMsPerSecond, renderMsPerNote, renderMsPerByte, midiMsPerByte, resampleMsPerByte);
+        } catch (Throwable t) {
+            log.error("Failed to calibrate cost model", t);
+        }
+    }
+
+    /**
+     * Fit {@code duration = a * length + b * notes} using least squares over the latest renders.<br>
+     * Cached renders are ignored since they don't represent the actual rendering cost.
+     */
+    private static void calibrateRender(final SQLiteDB db) throws Exception {
+        double ll = 0;
+        double ln = 0;
+        double nn = 0;
+        double ld = 0;
+        double nd = 0;
+        double sizeSum = 0;
+        double durationSum = 0;
+        int samples = 0;
+        try (PreparedStatement statement = db.prepare("SELECT \"SongLength\", \"NoteCount\", \"FileSize\", \"ConversionDuration\" FROM \"" + SQLiteDB.MP3_CONVERSIONS + "\" WHERE \"SongLength\" IS NOT NULL AND \"NoteCount\" IS NOT NULL AND \"Cached\" = 0 ORDER BY \"id\" DESC LIMIT " + CALIBRATION_SAMPLES);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                double length = resultSet.getDouble(1);
+                double notes = resultSet.getDouble(2);
+                double duration = resultSet.getDouble(4);
+                ll += length * length;
+                ln += length * notes;
+                nn += notes * notes;
+                ld += length * duration;
+                nd += notes * duration;
+                sizeSum += resultSet.getDouble(3);
+                durationSum += duration;
+                samples++;
+            }
+        }
+        if (samples < MIN_CALIBRATION_SAMPLES) return;
+
+        double determinant = ll * nn - ln * ln;
+        double perSecond = determinant == 0 ? 0 : (ld * nn - nd * ln) / determinant;
+        double perNote = determinant == 0 ? 0 : (ll * nd - ln * ld) / determinant;
+        if (perSecond < 0 || perNote < 0 || determinant == 0) {
+            //The notes and the length are too correlated or the data is too noisy, only use the length
+            perSecond = ll == 0 ? DEFAULT_RENDER_MS_PER_SECOND : ld / ll;
+            perNote = 0;
+        }
+        renderMsPerSecond = perSecond;
+        renderMsPerNote = perNote;
+        if (sizeSum > 0) renderMsPerByte = durationSum / sizeSum;
+    }
+
+    /**
+     * Calculate the average processing time per input byte over the latest conversions.<br>
+     * Cached conversions are ignored since they don't represent the actual processing cost.
+     */
+    private static double calibrateFileSize(final SQLiteDB db, final String table, final double defaultValue) throws Exception {
+        try (PreparedStatement statement = db.prepare("SELECT SUM(\"FileSize\"), SUM(\"ConversionDuration\"), COUNT(*) FROM (SELECT \"FileSize\", \"ConversionDuration\" FROM \"" + table + "\" WHERE \"Cached\" = 0 ORDER BY \"id\" DESC LIMIT " + CALIBRATION_SAMPLES + ")");
+             ResultSet resultSet = statement.executeQuery()) {
+            if (!resultSet.next() || resultSet.getInt(3) < MIN_CALIBRATION_SAMPLES) return defaultValue;
+            double size = resultSet.getDouble(1);
+            if (size <= 0) return defaultValue;
+            return resultSet.getDouble(2) / size;
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package net.lenni0451.noteblockbot.data;
+
+import net.lenni0451.noteblockbot.export.OutputFormat;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per guild settings which can be changed by the server managers.<br>
+ * The settings are stored in the database and cached in memory since they are read for every request.
+ */
+public class GuildSettings {
+
+    public static final String TABLE = "GuildSettings";
+
+    private final SQLiteDB db;
+    private final Map<Long, Settings> cache = new ConcurrentHashMap<>();
+
+    public GuildSettings(final SQLiteDB db) throws SQLException {
+        this.db = db;
+        try (Statement statement = db.getConnection().createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS \"" + TABLE + "\" (\"GuildId\" INTEGER NOT NULL, \"PreviewLength\" INTEGER NOT NULL DEFAULT 0, PRIMARY KEY(\"GuildId\"))");
+        }
+        db.addColumn(TABLE, "Format", "TEXT NOT NULL DEFAULT 'MP3'");
+    }
+
+    public Settings get(final long guildId) {
+        return this.cache.computeIfAbsent(guildId, this::load);
+    }
+
+    /**
+     * Set the length of the preview which is rendered instead of long songs.
+     *
+     * @param guildId       The id of the guild
+     * @param previewLength The length of the preview in seconds or {@code 0} to always render the full song
+     * @throws SQLException If the settings could not be saved
+     */
+    public void setPreviewLength(final long guildId, final int previewLength) throws SQLException {
+        try (PreparedStatement statement = this.db.prepare("INSERT INTO \"" + TABLE + "\" (\"GuildId\", \"PreviewLength\") VALUES (?, ?) ON CONFLICT(\"GuildId\") DO UPDATE SET \"PreviewLength\" = excluded.\"PreviewLength\"")) {
+            statement.setLong(1, guildId);
+            statement.setInt(2, previewLength);
+            statement.execute();
+        }
+        this.cache.remove(guildId);
+    }
+
+    /**
+     * Set the audio format songs are rendered as.
+     *
+     * @param guildId The id of the guild
+     * @param format  The output format
+     * @throws SQLException If the settings could not be saved
+     */
+    public void setFormat(final long guildId, final OutputFormat format) throws SQLException {
+        try (PreparedStatement statement = this.db.prepare("INSERT INTO \"" + TABLE + "\" (\"GuildId\", \"Format\") VALUES (?, ?) ON CONFLICT(\"GuildId\") DO UPDATE SET \"Format\" = excluded.\"Format\"")) {
+            statement.setLong(1, guildId);
+            statement.setString(2, format.name());
+            statement.execute();
+        }
+        this.cache.remove(guildId);
+    }
+
+    private Settings load(final long guildId) {
+        try (PreparedStatement statement = this.db.prepare("SELECT \"PreviewLength\", \"Format\" FROM \"" + TABLE + "\" WHERE \"GuildId\" = ?")) {
+            statement.setLong(1, guildId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) return Settings.DEFAULT;
+                return new Settings(resultSet.getInt(1), parseFormat(resultSet.getString(2)));
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to load settings of guild " + guildId, e);
+        }
+    }
+
+    private static OutputFormat parseFormat(final String format) {
+        try {
+            return OutputFormat.valueOf(format.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return OutputFormat.MP3; //The format has been removed
+        }
+    }
+
+
+    /**
+     * The settings of a guild.
+     *
+     * @param previewLength The length of the preview in seconds or {@code 0} to always render the full song
+     * @param format        The audio format songs are rendered as
+     */
+    public record Settings(int previewLength, OutputFormat format) {
+        public static final Settings DEFAULT = new Settings(0, OutputFormat.MP3);
+    }
+
+}
@@ -0,0 +1,149 @@
+package net.lenni0451.noteblockbot.data;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes logged interactions asynchronously into the database.<br>
+ * Interactions are collected in a bounded queue and written in batches inside a single transaction.
+ * Logging never blocks the calling thread. If the queue is full the interaction is dropped.
+ */
+@Slf4j
+public class InteractionLogger {
+
+    private static final int QUEUE_SIZE = 4096;
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private final Connection connection;
+    private final BlockingQueue<Interaction> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final Thread thread;
+
+    public InteractionLogger(final SQLiteDB db) throws SQLException {
+        this.connection = db.createConnection();
+        this.connection.setAutoCommit(false);
+        this.thread = new Thread(this::run, "InteractionLogger");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue an interaction for writing.<br>
+     * Does nothing if logging interactions is disabled in the config.
+     *
+     * @param interaction The interaction to log
+     */
+    public void log(final Interaction interaction) {
+        if (!Config.logInteractions) return;
+        if (!this.queue.offer(interaction)) {
+            log.warn("Dropped interaction for table {} because the log queue is full", interaction.table);
+        }
+    }
+
+    /**
+     * Stop the logger after writing all queued interactions.
+     *
+     * @param timeout The maximum time to wait in milliseconds
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    public void close(final long timeout) throws InterruptedException {
+        this.thread.interrupt();
+        this.thread.join(timeout);
+    }
+
+    private void run() {
+        List<Interaction> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (true) {
+            try {
+                Interaction first = this.queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                this.queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                this.write(batch);
+            } catch (InterruptedException e) {
+                //Write all remaining interactions before stopping
+                this.queue.drainTo(batch);
+                this.write(batch);
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+        this.closeConnection();
+    }
+
+    private void write(final List<Interaction> batch) {
+        if (batch.isEmpty()) return;
+        try {
+            Set<PreparedStatement> usedStatements = new HashSet<>();
+            for (Interaction interaction : batch) {
+                PreparedStatement statement = this.getStatement(interaction);
+                int i = 1;
+                for (Object value : interaction.values.values()) statement.setObject(i++, value);
+                statement.addBatch();
+                usedStatements.add(statement);
+            }
+            for (PreparedStatement statement : usedStatements) statement.executeBatch();
+            this.connection.commit();
+        } catch (Throwable t) {
+            log.error("Failed to write {} interactions", batch.size(), t);
+            try {
+                this.connection.rollback();
+            } catch (SQLException e) {
+                log.error("Failed to rollback interaction batch", e);
+            }
+        }
+    }
+
+    private PreparedStatement getStatement(final Interaction interaction) throws SQLException {
+        StringJoiner columns = new StringJoiner(", ");
+        StringJoiner values = new StringJoiner(", ");
+        for (String column : interaction.values.keySet()) {
+            columns.add("\"" + column + "\"");
+            values.add("?");
+        }
+        String sql = "INSERT INTO \"" + interaction.table + "\" (" + columns + ") VALUES (" + values + ")";
+        PreparedStatement statement = this.statements.get(sql);
+        if (statement == null) {
+            statement = this.connection.prepareStatement(sql);
+            this.statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private void closeConnection() {
+        try {
+            for (PreparedStatement statement : this.statements.values()) statement.close();
+            this.connection.close();
+        } catch (SQLException e) {
+            log.error("Failed to close interaction logger connection", e);
+        }
+    }
+
+
+    /**
+     * A single row which should be inserted into a table.<br>
+     * The columns are written in the order they were set.
+     */
+    public static class Interaction {
+        private final String table;
+        private final Map<String, Object> values = new LinkedHashMap<>();
+
+        public Interaction(final String table) {
+            this.table = table;
+        }
+
+        public Interaction set(final String column, final Object value) {
+            this.values.put(column, value);
+            return this;
+        }
+    }
+
+}
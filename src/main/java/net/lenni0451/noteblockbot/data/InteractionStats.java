@@ -0,0 +1,230 @@
+package net.lenni0451.noteblockbot.data;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics about the logged interactions.<br>
+ * The interactions are periodically rolled up into hourly aggregates per guild and user,
+ * so statistic queries only have to read the rollups and the few interactions of the last hour.
+ * Interactions are keyed by the time of the message but can be logged a lot later (e.g. slow or resumed jobs),
+ * so the last hours are rolled up again every time to include the late interactions.
+ * Percentiles are approximated using a histogram of the conversion durations.
+ */
+@Slf4j
+public class InteractionStats {
+
+    public static final String ROLLUPS = "HourlyRollups";
+    private static final long[] DURATION_BUCKETS = {50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 30_000, 60_000, 120_000, 300_000};
+    private static final long HOUR = Duration.ofHours(1).toMillis();
+    private static final long ROLLUP_DELAY = Duration.ofMinutes(5).toMillis(); //Interactions are logged asynchronously, give them some time to arrive
+    private static final long REROLL_HOURS = 2;
+    private static final Map<String, String> TYPES = Map.of(
+            "mp3", SQLiteDB.MP3_CONVERSIONS,
+            "midi", SQLiteDB.MIDI_CONVERSIONS,
+            "resample", SQLiteDB.RESAMPLES
+    );
+
+    private final SQLiteDB db;
+
+    public InteractionStats(final SQLiteDB db) throws SQLException {
+        this.db = db;
+        StringBuilder buckets = new StringBuilder();
+        for (int i = 0; i <= DURATION_BUCKETS.length; i++) buckets.append(", \"B").append(i).append("\" INTEGER NOT NULL");
+        try (Statement statement = db.getConnection().createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS \"" + ROLLUPS + "\" (\"Hour\" INTEGER NOT NULL, \"Type\" TEXT NOT NULL, \"GuildId\" INTEGER NOT NULL, \"UserId\" INTEGER NOT NULL, \"Count\" INTEGER NOT NULL, \"Bytes\" INTEGER NOT NULL" + buckets + ", PRIMARY KEY(\"Hour\", \"Type\", \"GuildId\", \"UserId\"))");
+            statement.execute("CREATE INDEX IF NOT EXISTS \"" + ROLLUPS + "_Guild\" ON \"" + ROLLUPS + "\" (\"GuildId\", \"Hour\")");
+        }
+    }
+
+    /**
+     * Roll up all finished hours now and then periodically every 10 minutes.
+     */
+    public void startRollups() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "InteractionStats-Rollup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> {
+            try {
+                this.rollup();
+            } catch (Throwable t) {
+                log.error("Failed to roll up interactions", t);
+            }
+        }, 0, 10, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Get the statistics of a guild.
+     *
+     * @param guildId The id of the guild
+     * @param window  The time window to get the statistics for
+     * @return The statistics
+     * @throws SQLException If the query failed
+     */
+    public Stats query(final long guildId, final Window window) throws SQLException {
+        long startHour = window.duration == null ? 0 : (System.currentTimeMillis() - window.duration.toMillis()) / HOUR;
+        long rolledUntil = this.getRolledUntil();
+        Map<String, TypeStats> types = new TreeMap<>();
+        Map<Long, Long> users = new HashMap<>();
+
+        try (PreparedStatement statement = this.db.prepare("SELECT \"Type\", \"UserId\", SUM(\"Count\"), SUM(\"Bytes\")" + this.bucketColumns("SUM(\"B", "\")") + " FROM \"" + ROLLUPS + "\" WHERE \"GuildId\" = ? AND \"Hour\" >= ? GROUP BY \"Type\", \"UserId\"")) {
+            statement.setLong(1, guildId);
+            statement.setLong(2, startHour);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                this.collect(resultSet, types, users);
+            }
+        }
+        for (Map.Entry<String, String> type : TYPES.entrySet()) {
+            //Interactions of the last hour are not rolled up yet
+            try (PreparedStatement statement = this.db.prepare("SELECT ?, \"UserId\", COUNT(*), SUM(\"FileSize\")" + this.histogramColumns() + " FROM \"" + type.getValue() + "\" WHERE \"GuildId\" = ? AND \"Timestamp\" >= ? GROUP BY \"UserId\"")) {
+                statement.setString(1, type.getKey());
+                statement.setLong(2, guildId);
+                statement.setLong(3, Math.max(rolledUntil, startHour) * HOUR);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    this.collect(resultSet, types, users);
+                }
+            }
+        }
+
+        List<Map.Entry<Long, Long>> topUsers = users.entrySet().stream()
+                .sorted(Map.Entry.<Long, Long>comparingByValue().reversed())
+                .limit(5)
+                .toList();
+        return new Stats(types, topUsers);
+    }
+
+    private void collect(final ResultSet resultSet, final Map<String, TypeStats> types, final Map<Long, Long> users) throws SQLException {
+        while (resultSet.next()) {
+            TypeStats stats = types.computeIfAbsent(resultSet.getString(1), k -> new TypeStats());
+            long count = resultSet.getLong(3);
+            stats.count += count;
+            stats.bytes += resultSet.getLong(4);
+            for (int i = 0; i < stats.histogram.length; i++) stats.histogram[i] += resultSet.getLong(5 + i);
+            users.merge(resultSet.getLong(2), count, Long::sum);
+        }
+    }
+
+    private synchronized void rollup() throws SQLException {
+        long from = this.getRolledUntil();
+        long until = (System.currentTimeMillis() - ROLLUP_DELAY) / HOUR;
+        if (from == 0) from = this.getFirstHour();
+        else from -= REROLL_HOURS; //The rollups of these hours are replaced with the recalculated ones
+        if (from >= until) return;
+
+        for (Map.Entry<String, String> type : TYPES.entrySet()) {
+            try (PreparedStatement statement = this.db.prepare("INSERT OR REPLACE INTO \"" + ROLLUPS + "\" (\"Hour\", \"Type\", \"GuildId\", \"UserId\", \"Count\", \"Bytes\"" + this.bucketColumns("\"B", "\"") + ") "
+                    + "SELECT \"Timestamp\" / " + HOUR + ", ?, \"GuildId\", \"UserId\", COUNT(*), SUM(\"FileSize\")" + this.histogramColumns() + " FROM \"" + type.getValue() + "\" "
+                    + "WHERE \"Timestamp\" >= ? AND \"Timestamp\" < ? GROUP BY \"Timestamp\" / " + HOUR + ", \"GuildId\", \"UserId\"")) {
+                statement.setString(1, type.getKey());
+                statement.setLong(2, from * HOUR);
+                statement.setLong(3, until * HOUR);
+                statement.execute();
+            }
+        }
+        log.info("Rolled up interactions of {} hours", until - from);
+    }
+
+    /**
+     * Get the first hour which has not been rolled up yet.
+     *
+     * @return The hour or {@code 0} if nothing has been rolled up yet
+     */
+    private long getRolledUntil() throws SQLException {
+        try (PreparedStatement statement = this.db.prepare("SELECT MAX(\"Hour\") FROM \"" + ROLLUPS + "\""); ResultSet resultSet = statement.executeQuery()) {
+            if (!resultSet.next()) return 0;
+            long hour = resultSet.getLong(1);
+            return resultSet.wasNull() ? 0 : hour + 1;
+        }
+    }
+
+    private long getFirstHour() throws SQLException {
+        long first = Long.MAX_VALUE;
+        for (String table : TYPES.values()) {
+            try (PreparedStatement statement = this.db.prepare("SELECT MIN(\"Timestamp\") FROM \"" + table + "\""); ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    long timestamp = resultSet.getLong(1);
+                    if (!resultSet.wasNull()) first = Math.min(first, timestamp / HOUR);
+                }
+            }
+        }
+        return first == Long.MAX_VALUE ? 0 : first;
+    }
+
+    private String bucketColumns(final String prefix, final String suffix) {
+        StringBuilder columns = new StringBuilder();
+        for (int i = 0; i <= DURATION_BUCKETS.length; i++) columns.append(", ").append(prefix).append(i).append(suffix);
+        return columns.toString();
+    }
+
+    private String histogramColumns() {
+        StringBuilder columns = new StringBuilder();
+        for (int i = 0; i <= DURATION_BUCKETS.length; i++) {
+            columns.append(", SUM(CASE WHEN ");
+            if (i > 0) columns.append("\"ConversionDuration\" >= ").append(DURATION_BUCKETS[i - 1]);
+            if (i > 0 && i < DURATION_BUCKETS.length) columns.append(" AND ");
+            if (i < DURATION_BUCKETS.length) columns.append("\"ConversionDuration\" < ").append(DURATION_BUCKETS[i]);
+            columns.append(" THEN 1 ELSE 0 END)");
+        }
+        return columns.toString();
+    }
+
+
+    public enum Window {
+        DAY(Duration.ofDays(1)),
+        WEEK(Duration.ofDays(7)),
+        MONTH(Duration.ofDays(30)),
+        ALL(null);
+
+        private final Duration duration;
+
+        Window(final Duration duration) {
+            this.duration = duration;
+        }
+    }
+
+    public record Stats(Map<String, TypeStats> types, List<Map.Entry<Long, Long>> topUsers) {
+    }
+
+    public static class TypeStats {
+        private long count;
+        private long bytes;
+        private final long[] histogram = new long[DURATION_BUCKETS.length + 1];
+
+        public long getCount() {
+            return this.count;
+        }
+
+        public long getBytes() {
+            return this.bytes;
+        }
+
+        /**
+         * Approximate a percentile of the conversion durations.<br>
+         * The returned value is the upper bound of the histogram bucket containing the percentile.
+         *
+         * @param percentile The percentile between 0 and 1
+         * @return The upper bound in milliseconds or {@code -1} if the percentile is above the largest bucket
+         */
+        public long getDurationPercentile(final double percentile) {
+            long target = (long) Math.ceil(this.count * percentile);
+            long cumulative = 0;
+            for (int i = 0; i < DURATION_BUCKETS.length; i++) {
+                cumulative += this.histogram[i];
+                if (cumulative >= target) return DURATION_BUCKETS[i];
+            }
+            return -1;
+        }
+    }
+
+}
@@ -3,24 +3,126 @@ package net.lenni0451.noteblockbot.data;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import io.github.bucket4j.Bucket;
+import net.lenni0451.noteblockbot.metrics.Metrics;
 
 import java.time.Duration;
 
+/**
+ * Rate limits the requests of users and guilds.<br>
+ * The buckets are filled with work units instead of requests. One request is worth {@link #REQUEST_UNITS} units,
+ * requests with a higher estimated processing time (see {@link CostModel}) consume more units.
+ */
 public class RateLimiter {
 
+    public static final long REQUEST_UNITS = 100;
+    private static final long MIN_COST = REQUEST_UNITS / 10;
+
     private static final LoadingCache<Long, Bucket> userBuckets = Caffeine.newBuilder().expireAfterAccess(Duration.ofMinutes(5)).build(key -> Bucket.builder()
-            .addLimit(limit -> limit.capacity(Config.RateLimits.userMaxRequestsPerMinute).refillIntervally(Config.RateLimits.userMaxRequestsPerMinute, Duration.ofMinutes(1)))
+            .addLimit(limit -> limit.capacity(userCapacity()).refillIntervally(userCapacity(), Duration.ofMinutes(1)))
             .build());
     private static final LoadingCache<Long, Bucket> guildBuckets = Caffeine.newBuilder().expireAfterAccess(Duration.ofMinutes(5)).build(key -> Bucket.builder()
-            .addLimit(limit -> limit.capacity(Config.RateLimits.guildMaxRequestsPerMinute).refillIntervally(Config.RateLimits.guildMaxRequestsPerMinute, Duration.ofMinutes(1)))
+            .addLimit(limit -> limit.capacity(guildCapacity()).refillIntervally(guildCapacity(), Duration.ofMinutes(1)))
             .build());
 
+    /**
+     * Convert an estimated processing time into work units.<br>
+     * The cost is limited to the capacity of a bucket, so every request can be executed when the buckets are full.
+     *
+     * @param estimatedMillis The estimated processing time in milliseconds
+     * @return The cost in work units
+     */
+    public static long cost(final long estimatedMillis) {
+        long cost = estimatedMillis * REQUEST_UNITS / Math.max(1, Config.RateLimits.requestCost);
+        return Math.max(MIN_COST, Math.min(cost, maxCost()));
+    }
+
+    /**
+     * Get the highest cost a single request can have.<br>
+     * Requests containing multiple songs have to be rejected if their summed cost is higher, otherwise they would be cheaper than sending the songs one by one.
+     *
+     * @return The capacity of the smaller bucket in work units
+     */
+    public static long maxCost() {
+        return Math.min(userCapacity(), guildCapacity());
+    }
+
     public static boolean tryUser(final long userId) {
-        return userBuckets.get(userId).tryConsume(1);
+        return tryUser(userId, REQUEST_UNITS);
+    }
+
+    public static boolean tryUser(final long userId, final long cost) {
+        if (userBuckets.get(userId).tryConsume(cost)) return true;
+        Metrics.RATE_LIMIT_REJECTIONS.inc("user");
+        return false;
     }
 
     public static boolean tryGuild(final long guildId) {
-        return guildBuckets.get(guildId).tryConsume(1);
+        return tryGuild(guildId, REQUEST_UNITS);
+    }
+
+    public static boolean tryGuild(final long guildId, final long cost) {
+        if (guildBuckets.get(guildId).tryConsume(cost)) return true;
+        Metrics.RATE_LIMIT_REJECTIONS.inc("guild");
+        return false;
+    }
+
+    /**
+     * Consume work units from the user and the guild bucket.<br>
+     * If one of the buckets does not have enough units left, nothing is consumed.
+     *
+     * @param userId  The id of the user
+     * @param guildId The id of the guild
+     * @param cost    The cost in work units
+     * @return If the units were consumed
+     */
+    public static boolean tryConsume(final long userId, final long guildId, final long cost) {
+        if (!tryUser(userId, cost)) return false;
+        if (!tryGuild(guildId, cost)) {
+            userBuckets.get(userId).addTokens(cost);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Correct an earlier charge after the actual cost of a request is known.<br>
+     * Overcharged units are refunded, missing units are consumed from both buckets.
+     *
+     * @param userId      The id of the user
+     * @param guildId     The id of the guild
+     * @param chargedCost The cost that has already been consumed
+     * @param actualCost  The actual cost of the request
+     * @return If the missing units could be consumed
+     */
+    public static boolean adjust(final long userId, final long guildId, final long chargedCost, final long actualCost) {
+        long difference = actualCost - chargedCost;
+        if (difference < 0) {
+            refund(userId, guildId, -difference);
+            return true;
+        }
+        return difference == 0 || tryConsume(userId, guildId, difference);
+    }
+
+    /**
+     * Give work units back to the user and the guild bucket.<br>
+     * Used when a request turned out to be cheaper than initially estimated.
+     *
+     * @param userId  The id of the user
+     * @param guildId The id of the guild
+     * @param cost    The cost in work units
+     */
+    public static void refund(final long userId, final long guildId, final long cost) {
+        if (cost <= 0) return;
+        userBuckets.get(userId).addTokens(cost);
+        guildBuckets.get(guildId).addTokens(cost);
+    }
+
+    private static long userCapacity() {
+        return Config.RateLimits.userMaxRequestsPerMinute * REQUEST_UNITS;
+    }
+
+    private static long guildCapacity() {
+        return Config.RateLimits.guildMaxRequestsPerMinute * REQUEST_UNITS;
     }
 
 }
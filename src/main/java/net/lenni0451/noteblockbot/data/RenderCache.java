@@ -0,0 +1,190 @@
+package net.lenni0451.noteblockbot.data;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+import net.lenni0451.noteblockbot.utils.ChunkedOutput;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A content addressed cache for render and conversion results.<br>
+ * Results are stored in a bounded memory cache and in a size capped directory on disk.
+ * The disk cache survives restarts and evicts the least recently used results first.<br>
+ * Files are written to a temporary file and atomically renamed, so they can be read without holding the lock.
+ * The lock only guards the size accounting and the eviction.
+ */
+@Slf4j
+public class RenderCache {
+
+    private static final String FILE_EXTENSION = ".bin";
+    private static final String TEMP_FILE_EXTENSION = ".tmp";
+
+    private final boolean enabled;
+    private final File directory;
+    private final long maxDiskSize;
+    private final Cache<String, byte[]> memoryCache;
+    private long diskSize;
+
+    /**
+     * Create a cache key from the type of the result, the input data and all parameters that influence the result.
+     *
+     * @param type       The type of the result (e.g. mp3, midi, resample)
+     * @param input      The input data
+     * @param parameters The parameters used to create the result
+     * @return The cache key
+     */
+    public static String key(final String type, final byte[] input, final Object... parameters) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putString(type, StandardCharsets.UTF_8);
+        hasher.putBytes(input);
+        for (Object parameter : parameters) {
+            hasher.putByte((byte) 0);
+            hasher.putString(String.valueOf(parameter), StandardCharsets.UTF_8);
+        }
+        return type + "-" + hasher.hash();
+    }
+
+    public RenderCache() {
+        this(Config.RenderCache.enabled, new File(Config.RenderCache.directory), Config.RenderCache.maxMemorySize, Config.RenderCache.maxDiskSize);
+    }
+
+    public RenderCache(final boolean enabled, final File directory, final long maxMemorySize, final long maxDiskSize) {
+        this.enabled = enabled;
+        this.directory = directory;
+        this.maxDiskSize = maxDiskSize;
+        this.memoryCache = Caffeine.newBuilder().maximumWeight(maxMemorySize).<String, byte[]>weigher((key, value) -> value.length).build();
+        if (enabled) {
+            this.directory.mkdirs();
+            for (File file : this.listFiles(TEMP_FILE_EXTENSION)) file.delete(); //Leftovers of writes which were interrupted by a restart
+            for (File file : this.listFiles(FILE_EXTENSION)) this.diskSize += file.length();
+            log.info("Loaded render cache with {} results ({} bytes)", this.listFiles(FILE_EXTENSION).length, this.diskSize);
+            this.evict();
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Get a cached result or compute and cache it if it is not cached yet.
+     *
+     * @param key      The cache key
+     * @param supplier The supplier that computes the result
+     * @return The cached or computed result
+     * @throws Exception If the computation failed
+     */
+    public byte[] get(final String key, final ResultSupplier supplier) throws Exception {
+        byte[] data = this.get(key);
+        if (data == null) {
+            data = supplier.get();
+            this.put(key, data);
+        }
+        return data;
+    }
+
+    public byte[] get(final String key) {
+        if (!this.enabled) return null;
+        File file = new File(this.directory, key + FILE_EXTENSION);
+        byte[] data = this.memoryCache.getIfPresent(key);
+        if (data != null) {
+            file.setLastModified(System.currentTimeMillis()); //Keep results which are used from memory in the disk cache
+            return data;
+        }
+
+        try {
+            data = Files.readAllBytes(file.toPath());
+            file.setLastModified(System.currentTimeMillis());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.warn("Failed to read cached result {}", key, e);
+            return null;
+        }
+        this.memoryCache.put(key, data);
+        return data;
+    }
+
+    public void put(final String key, final byte[] data) {
+        if (!this.enabled) return;
+        this.memoryCache.put(key, data);
+        this.write(key, file -> Files.write(file, data));
+    }
+
+    /**
+     * Write a pooled result to the disk cache without copying it into an array.<br>
+     * The result is only kept in memory once it has been read again.
+     * The output must not be closed before this method returns.
+     *
+     * @param key  The cache key
+     * @param data The result
+     */
+    public void put(final String key, final ChunkedOutput data) {
+        if (!this.enabled) return;
+        this.memoryCache.invalidate(key);
+        this.write(key, file -> {
+            try (InputStream is = data.toInputStream()) {
+                Files.copy(is, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        });
+    }
+
+    private void write(final String key, final ResultWriter writer) {
+        File file = new File(this.directory, key + FILE_EXTENSION);
+        Path tempFile = null;
+        try {
+            tempFile = Files.createTempFile(this.directory.toPath(), key, TEMP_FILE_EXTENSION); //Concurrent writes of the same result need different temporary files
+            writer.write(tempFile);
+            long size = Files.size(tempFile);
+            synchronized (this) {
+                long oldSize = file.isFile() ? file.length() : 0;
+                Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                this.diskSize += size - oldSize;
+                this.evict();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to write cached result {}", key, e);
+            if (tempFile != null) tempFile.toFile().delete();
+        }
+    }
+
+    private synchronized void evict() {
+        if (this.diskSize <= this.maxDiskSize) return;
+        File[] files = this.listFiles(FILE_EXTENSION);
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (this.diskSize <= this.maxDiskSize) break;
+            long size = file.length();
+            if (file.delete()) this.diskSize -= size;
+        }
+    }
+
+    private File[] listFiles(final String extension) {
+        File[] files = this.directory.listFiles((dir, name) -> name.endsWith(extension));
+        return files == null ? new File[0] : files;
+    }
+
+
+    @FunctionalInterface
+    public interface ResultSupplier {
+        byte[] get() throws Exception;
+    }
+
+    @FunctionalInterface
+    private interface ResultWriter {
+        void write(final Path file) throws IOException;
+    }
+
+}
@@ -5,7 +5,9 @@ import lombok.SneakyThrows;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Map;
 
 public class SQLiteDB {
@@ -14,22 +16,50 @@ public class SQLiteDB {
     public static final String MIDI_CONVERSIONS = "MidiConversions";
     public static final String RESAMPLES = "Resamples";
     private static final Map<String, String> TABLES = Map.of(
-            MP3_CONVERSIONS, "(\"id\" INTEGER UNIQUE, \"GuildId\" INTEGER NOT NULL, \"UserId\" INTEGER NOT NULL, \"UserName\" TEXT NOT NULL, \"Date\" TEXT NOT NULL, \"Source\" INTEGER NOT NULL, \"FileName\" TEXT NOT NULL, \"FileSize\" INTEGER NOT NULL, \"FileHash\" TEXT NOT NULL, \"ConversionDuration\" INTEGER NOT NULL, PRIMARY KEY(\"id\" AUTOINCREMENT))",
-            MIDI_CONVERSIONS, "(\"id\" INTEGER UNIQUE, \"GuildId\" INTEGER NOT NULL, \"UserId\" INTEGER NOT NULL, \"UserName\" TEXT NOT NULL, \"Date\" TEXT NOT NULL, \"FileName\" TEXT NOT NULL, \"FileSize\" INTEGER NOT NULL, \"FileHash\" TEXT NOT NULL, \"ConversionDuration\" INTEGER NOT NULL, PRIMARY KEY(\"id\" AUTOINCREMENT))",
-            RESAMPLES, "(\"id\" INTEGER UNIQUE, \"GuildId\" INTEGER NOT NULL, \"UserId\" INTEGER NOT NULL, \"UserName\" TEXT NOT NULL, \"Date\" TEXT NOT NULL, \"FileName\" TEXT NOT NULL, \"FileSize\" INTEGER NOT NULL, \"FileHash\" TEXT NOT NULL, \"ConversionDuration\" INTEGER NOT NULL, PRIMARY KEY(\"id\" AUTOINCREMENT));"
+            MP3_CONVERSIONS, "(\"id\" INTEGER UNIQUE, \"GuildId\" INTEGER NOT NULL, \"UserId\" INTEGER NOT NULL, \"UserName\" TEXT NOT NULL, \"Date\" TEXT NOT NULL, \"Timestamp\" INTEGER, \"Source\" INTEGER NOT NULL, \"FileName\" TEXT NOT NULL, \"FileSize\" INTEGER NOT NULL, \"FileHash\" TEXT NOT NULL, \"ConversionDuration\" INTEGER NOT NULL, \"SongLength\" REAL, \"NoteCount\" INTEGER, \"Cached\" INTEGER NOT NULL DEFAULT 0, PRIMARY KEY(\"id\" AUTOINCREMENT))",
+            MIDI_CONVERSIONS, "(\"id\" INTEGER UNIQUE, \"GuildId\" INTEGER NOT NULL, \"UserId\" INTEGER NOT NULL, \"UserName\" TEXT NOT NULL, \"Date\" TEXT NOT NULL, \"Timestamp\" INTEGER, \"FileName\" TEXT NOT NULL, \"FileSize\" INTEGER NOT NULL, \"FileHash\" TEXT NOT NULL, \"ConversionDuration\" INTEGER NOT NULL, \"Cached\" INTEGER NOT NULL DEFAULT 0, PRIMARY KEY(\"id\" AUTOINCREMENT))",
+            RESAMPLES, "(\"id\" INTEGER UNIQUE, \"GuildId\" INTEGER NOT NULL, \"UserId\" INTEGER NOT NULL, \"UserName\" TEXT NOT NULL, \"Date\" TEXT NOT NULL, \"Timestamp\" INTEGER, \"FileName\" TEXT NOT NULL, \"FileSize\" INTEGER NOT NULL, \"FileHash\" TEXT NOT NULL, \"ConversionDuration\" INTEGER NOT NULL, \"Cached\" INTEGER NOT NULL DEFAULT 0, PRIMARY KEY(\"id\" AUTOINCREMENT));"
     );
 
+    private final String path;
     private final Connection connection;
 
     public SQLiteDB(final String path) throws SQLException {
-        this.connection = DriverManager.getConnection("jdbc:sqlite:" + path);
+        this.path = path;
+        this.connection = this.createConnection();
+        try (Statement statement = this.connection.createStatement()) {
+            //WAL allows reading while the interaction logger is writing and makes commits much cheaper
+            statement.execute("PRAGMA journal_mode=WAL");
+        }
         this.createTables();
+        this.addColumn(MP3_CONVERSIONS, "SongLength", "REAL");
+        this.addColumn(MP3_CONVERSIONS, "NoteCount", "INTEGER");
+        this.addColumn(MP3_CONVERSIONS, "Cached", "INTEGER NOT NULL DEFAULT 0");
+        this.addColumn(MIDI_CONVERSIONS, "Cached", "INTEGER NOT NULL DEFAULT 0");
+        this.addColumn(RESAMPLES, "Cached", "INTEGER NOT NULL DEFAULT 0");
+        this.migrateTimestamps();
     }
 
     public Connection getConnection() {
         return this.connection;
     }
 
+    /**
+     * Open a new connection to the database.<br>
+     * Used by components which need their own transactions.
+     *
+     * @return The new connection
+     * @throws SQLException If the connection could not be opened
+     */
+    public Connection createConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + this.path);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA synchronous=NORMAL");
+            statement.execute("PRAGMA busy_timeout=5000");
+        }
+        return connection;
+    }
+
     public PreparedStatement prepare(final String sql) throws SQLException {
         return this.connection.prepareStatement(sql);
     }
@@ -43,4 +73,37 @@ public class SQLiteDB {
         }
     }
 
+    /**
+     * Add a numeric timestamp to all interaction tables and index them for statistic queries.<br>
+     * The timestamp of old entries is parsed from the date text.
+     */
+    @SneakyThrows
+    private void migrateTimestamps() {
+        for (String table : TABLES.keySet()) {
+            this.addColumn(table, "Timestamp", "INTEGER");
+            try (Statement statement = this.connection.createStatement()) {
+                statement.execute("UPDATE \"" + table + "\" SET \"Timestamp\" = CAST(strftime('%s', \"Date\") AS INTEGER) * 1000 WHERE \"Timestamp\" IS NULL");
+                statement.execute("CREATE INDEX IF NOT EXISTS \"" + table + "_Timestamp\" ON \"" + table + "\" (\"Timestamp\")");
+                statement.execute("CREATE INDEX IF NOT EXISTS \"" + table + "_Guild\" ON \"" + table + "\" (\"GuildId\", \"Timestamp\")");
+                statement.execute("CREATE INDEX IF NOT EXISTS \"" + table + "_User\" ON \"" + table + "\" (\"UserId\", \"Timestamp\")");
+            }
+        }
+    }
+
+    /**
+     * Add a column to an existing table if it does not exist yet.<br>
+     * Used to migrate databases created by older versions.
+     */
+    @SneakyThrows
+    public void addColumn(final String table, final String column, final String definition) {
+        try (PreparedStatement statement = this.connection.prepareStatement("PRAGMA table_info(\"" + table + "\")"); ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                if (resultSet.getString("name").equalsIgnoreCase(column)) return;
+            }
+        }
+        try (PreparedStatement statement = this.connection.prepareStatement("ALTER TABLE \"" + table + "\" ADD COLUMN \"" + column + "\" " + definition)) {
+            statement.execute();
+        }
+    }
+
 }
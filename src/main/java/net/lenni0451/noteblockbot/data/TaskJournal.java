@@ -0,0 +1,145 @@
+package net.lenni0451.noteblockbot.data;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A durable journal of all jobs that have been accepted but not finished yet.<br>
+ * Jobs are added when they are submitted to the pipeline and removed after they have been published or failed.
+ * Jobs which are still in the journal on startup were interrupted by a restart and are resumed.
+ */
+@Slf4j
+public class TaskJournal {
+
+    public static final String TABLE = "PendingJobs";
+    public static final String MP3 = "mp3";
+    public static final String MIDI = "midi";
+    public static final String RESAMPLE = "resample";
+    public static final String BATCH = "batch";
+    private static final long INTERACTION_LIFETIME = Duration.ofMinutes(15).toMillis();
+
+    private final SQLiteDB db;
+
+    public TaskJournal(final SQLiteDB db) throws SQLException {
+        this.db = db;
+        try (Statement statement = db.getConnection().createStatement()) {
+            //A file can only be processed once per source and parameters, a full render of a song can still be requested while its preview is rendered
+            statement.execute("CREATE TABLE IF NOT EXISTS \"" + TABLE + "\" (\"id\" INTEGER UNIQUE, \"Type\" TEXT NOT NULL, \"GuildId\" INTEGER NOT NULL, \"ChannelId\" INTEGER NOT NULL, \"SourceId\" INTEGER NOT NULL, \"InteractionToken\" TEXT, \"UserId\" INTEGER NOT NULL, \"UserName\" TEXT NOT NULL, \"Timestamp\" INTEGER NOT NULL, \"FileName\" TEXT NOT NULL, \"FileSize\" INTEGER NOT NULL, \"Url\" TEXT NOT NULL, \"Parameters\" TEXT NOT NULL, PRIMARY KEY(\"id\" AUTOINCREMENT), UNIQUE(\"SourceId\", \"Url\", \"Parameters\"))");
+        }
+    }
+
+    /**
+     * Add a job to the journal.<br>
+     * A job which is already in the journal is not added again, it has to be rejected instead of being executed a second time.
+     *
+     * @param entry The job to add
+     * @return The id of the journal entry, {@code 0} if the same job is already in the journal or {@code -1} if the job could not be added
+     */
+    public long add(final Entry entry) {
+        try (PreparedStatement statement = this.db.prepare("INSERT OR IGNORE INTO \"" + TABLE + "\" (\"Type\", \"GuildId\", \"ChannelId\", \"SourceId\", \"InteractionToken\", \"UserId\", \"UserName\", \"Timestamp\", \"FileName\", \"FileSize\", \"Url\", \"Parameters\") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) RETURNING \"id\"")) {
+            statement.setString(1, entry.type);
+            statement.setLong(2, entry.guildId);
+            statement.setLong(3, entry.channelId);
+            statement.setLong(4, entry.sourceId);
+            statement.setString(5, entry.interactionToken);
+            statement.setLong(6, entry.userId);
+            statement.setString(7, entry.userName);
+            statement.setLong(8, entry.timestamp);
+            statement.setString(9, entry.fileName);
+            statement.setLong(10, entry.fileSize);
+            statement.setString(11, entry.url);
+            statement.setString(12, entry.parameters);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0; //Nothing is returned if the job is already in the journal
+            }
+        } catch (SQLException e) {
+            log.error("Failed to add job {} to the journal", entry.fileName, e);
+            return -1;
+        }
+    }
+
+    public void remove(final long id) {
+        if (id <= 0) return;
+        try (PreparedStatement statement = this.db.prepare("DELETE FROM \"" + TABLE + "\" WHERE \"id\" = ?")) {
+            statement.setLong(1, id);
+            statement.execute();
+        } catch (SQLException e) {
+            log.error("Failed to remove job {} from the journal", id, e);
+        }
+    }
+
+    /**
+     * Get all jobs that have not been finished yet.
+     *
+     * @return The pending jobs in the order they were added
+     * @throws SQLException If the query failed
+     */
+    public List<Entry> getPending() throws SQLException {
+        List<Entry> entries = new ArrayList<>();
+        try (PreparedStatement statement = this.db.prepare("SELECT \"id\", \"Type\", \"GuildId\", \"ChannelId\", \"SourceId\", \"InteractionToken\", \"UserId\", \"UserName\", \"Timestamp\", \"FileName\", \"FileSize\", \"Url\", \"Parameters\" FROM \"" + TABLE + "\" ORDER BY \"id\"");
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                entries.add(new Entry(
+                        resultSet.getLong(1),
+                        resultSet.getString(2),
+                        resultSet.getLong(3),
+                        resultSet.getLong(4),
+                        resultSet.getLong(5),
+                        resultSet.getString(6),
+                        resultSet.getLong(7),
+                        resultSet.getString(8),
+                        resultSet.getLong(9),
+                        resultSet.getString(10),
+                        resultSet.getLong(11),
+                        resultSet.getString(12),
+                        resultSet.getString(13)
+                ));
+            }
+        }
+        return entries;
+    }
+
+
+    /**
+     * A job in the journal.
+     *
+     * @param id               The id of the journal entry or {@code 0} if the job has not been added yet
+     * @param type             The type of the job
+     * @param guildId          The id of the guild
+     * @param channelId        The id of the channel
+     * @param sourceId         The id of the message or interaction which requested the job
+     * @param interactionToken The token of the interaction or {@code null} if the job was requested by a message
+     * @param userId           The id of the user
+     * @param userName         The name of the user
+     * @param timestamp        The time the job was requested in milliseconds
+     * @param fileName         The name of the file
+     * @param fileSize         The size of the file in bytes
+     * @param url              The url of the file
+     * @param parameters       Additional parameters of the job type
+     */
+    public record Entry(long id, String type, long guildId, long channelId, long sourceId, String interactionToken, long userId, String userName, long timestamp, String fileName, long fileSize, String url, String parameters) {
+        public String date() {
+            return Instant.ofEpochMilli(this.timestamp).atOffset(ZoneOffset.UTC).toString();
+        }
+
+        /**
+         * Check if the result of the job can't be delivered anymore.<br>
+         * Interaction tokens are only valid for 15 minutes, jobs requested by messages never expire.
+         *
+         * @return If the job has expired
+         */
+        public boolean isExpired() {
+            return this.interactionToken != null && System.currentTimeMillis() - this.timestamp > INTERACTION_LIFETIME;
+        }
+    }
+
+}
@@ -0,0 +1,217 @@
+package net.lenni0451.noteblockbot.export;
+
+import net.lenni0451.noteblockbot.metrics.Metrics;
+import net.lenni0451.noteblockbot.task.TaskHandle;
+import net.lenni0451.noteblockbot.utils.ChunkedOutput;
+import net.lenni0451.noteblockbot.utils.MessageException;
+import net.lenni0451.noteblockbot.utils.NbsScanner;
+import net.raphimc.audiomixer.util.FloatAudioFormat;
+import net.raphimc.noteblocklib.format.nbs.model.NbsSong;
+
+import java.util.List;
+
+/**
+ * An encoder which renders songs into an uploadable audio file.<br>
+ * Every encoder has a ladder of settings from the best to the cheapest, the best settings whose output fits into the upload limit are used.
+ */
+public interface AudioEncoder {
+
+    int MAX_SOUNDS = 16384;
+
+    /**
+     * @return The extension of the encoded files without the dot
+     */
+    String getFileExtension();
+
+    /**
+     * @return The available encoder settings from the best to the cheapest
+     */
+    List<Settings> getSettings();
+
+    default Settings getDefaultSettings() {
+        return this.getSettings().get(0);
+    }
+
+    /**
+     * Choose the best encoder settings whose predicted output fits into the upload limit.<br>
+     * Lower settings also reduce the rendering cost because less samples have to be mixed.
+     *
+     * @param lengthInSeconds The length of the song in seconds
+     * @param maxFileSize     The maximum size of the output in bytes
+     * @return The chosen settings
+     * @throws MessageException If the song is too long for even the cheapest settings
+     */
+    default Settings selectSettings(final float lengthInSeconds, final long maxFileSize) {
+        for (Settings settings : this.getSettings()) {
+            if (settings.predictSize(lengthInSeconds) <= maxFileSize) return settings;
+        }
+        throw new MessageException("The song is too long to be uploaded in this server (Max: " + maxFileSize / 1024 / 1024 + " MB)");
+    }
+
+    /**
+     * Get the render cache key for a song with the given encoder settings.
+     *
+     * @param songData  The raw data of the song
+     * @param soundBank The sound bank used for rendering
+     * @param settings  The encoder settings
+     * @param preview   The rendered window of the song or {@code null} for the whole song
+     * @return The cache key
+     */
+    String cacheKey(final byte[] songData, final SoundBank soundBank, final Settings settings, final Preview preview);
+
+    /**
+     * Get the largest expected size of the encoded data per second of audio.
+     *
+     * @param settings The encoder settings
+     * @return The size in bytes
+     */
+    long outputBytesPerSecond(final Settings settings);
+
+    /**
+     * Estimate the peak heap usage of rendering and encoding a song.<br>
+     * If the output is too large, the song is rendered again with cheaper settings (see {@link #encodeToFit}).
+     * Only one render runs at a time, so the most expensive of the settings which can be reached is counted.<br>
+     * Only the segments which are currently rendered are kept in memory, the encoded data is kept twice if it is copied for the render cache.
+     *
+     * @param stats    The scanned song information
+     * @param settings The settings to start encoding with
+     * @return The estimated memory usage in bytes
+     */
+    default long estimateMemory(final NbsScanner.SongStats stats, final Settings settings) {
+        List<Settings> ladder = this.getSettings();
+        long renderMemory = 0;
+        for (int i = Math.max(0, ladder.indexOf(settings)); i < ladder.size(); i++) {
+            Settings current = ladder.get(i);
+            long samples = SegmentRenderer.estimateMemory(stats.lengthInSeconds(), current.format());
+            long encodedData = (long) (stats.lengthInSeconds() + 2) * this.outputBytesPerSecond(current) * 2;
+            renderMemory = Math.max(renderMemory, samples + encodedData);
+        }
+        long notes = (long) stats.noteCount() * 128;
+        return renderMemory + notes + 16 * 1024 * 1024;
+    }
+
+    /**
+     * Render a song and encode it.<br>
+     * The samples are encoded while the song is rendered, so they are never kept for the whole song.
+     * The handle is checked while rendering and encoding to abort cancelled jobs.<br>
+     * The encoded data is written into pooled buffers, the output has to be closed to return them to the pool.
+     *
+     * @param song      The song to render
+     * @param soundBank The sound bank used for rendering
+     * @param settings  The encoder settings
+     * @param handle    The handle of the job
+     * @return The encoded data
+     * @throws Exception If rendering or encoding failed
+     */
+    ChunkedOutput encode(final NbsSong song, final SoundBank soundBank, final Settings settings, final TaskHandle handle) throws Exception;
+
+    /**
+     * Render a song and encode it with the given settings, or with the next cheaper settings of the ladder as long as the output is too large.<br>
+     * The samples are not kept after encoding, so the song is rendered again for every settings that are tried.
+     * Cheaper settings don't render slower, so a render is only started again if the previous one would still fit into the remaining time of the handle.
+     *
+     * @param song        The song to render
+     * @param soundBank   The sound bank used for rendering
+     * @param settings    The settings to start with
+     * @param maxFileSize The maximum size of the output in bytes
+     * @param handle      The handle of the job
+     * @return The encoded data and the settings it was encoded with
+     * @throws MessageException If the output is too large even with the cheapest settings or there is no time left to render it again
+     * @throws Exception        If rendering or encoding failed
+     */
+    default Encoded encodeToFit(final NbsSong song, final SoundBank soundBank, final Settings settings, final long maxFileSize, final TaskHandle handle) throws Exception {
+        List<Settings> ladder = this.getSettings();
+        for (int i = Math.max(0, ladder.indexOf(settings)); i < ladder.size(); i++) {
+            Settings current = ladder.get(i);
+            long start = System.nanoTime();
+            ChunkedOutput output = this.encode(song, soundBank, current, handle);
+            if (output.size() <= maxFileSize) return new Encoded(output, current);
+            output.close();
+            if (i + 1 < ladder.size() && handle.getRemainingMillis() < (System.nanoTime() - start) / 1_000_000) {
+                throw new MessageException("The rendered song is too large to be uploaded in this server and there is no time left to render it with lower quality");
+            }
+        }
+        throw new MessageException("The rendered song is too large to be uploaded in this server");
+    }
+
+    /**
+     * Render the interleaved samples of a song in segments and pass them to the consumer in order (see {@link SegmentRenderer}).<br>
+     * The sound bank is locked while rendering so it can't be reloaded in between.<br>
+     * The render progress is stored in the handle. Long songs are rendered on multiple cores.
+     *
+     * @param song      The song to render
+     * @param soundBank The sound bank used for rendering
+     * @param format    The format of the samples
+     * @param maxSounds The maximum amount of sounds playing at the same time
+     * @param handle    The handle of the job
+     * @param consumer  The consumer of the rendered samples
+     * @throws Exception If rendering or consuming the samples failed
+     */
+    static void render(final NbsSong song, final SoundBank soundBank, final FloatAudioFormat format, final int maxSounds, final TaskHandle handle, final SampleConsumer consumer) throws Exception {
+        long[] encodeNanos = new long[1];
+        soundBank.renderLock().lock();
+        long start = System.nanoTime();
+        try {
+            SegmentRenderer.render(song, format, maxSounds, handle, (samples, length) -> {
+                handle.check();
+                long encodeStart = System.nanoTime();
+                consumer.accept(samples, length);
+                encodeNanos[0] += System.nanoTime() - encodeStart;
+            });
+        } finally {
+            //Rendering and encoding are interleaved, the time spent in the consumer is counted as encoding
+            Metrics.STAGE_DURATION.observe((System.nanoTime() - start - encodeNanos[0]) / 1_000_000_000D, "render");
+            Metrics.STAGE_DURATION.observe(encodeNanos[0] / 1_000_000_000D, "encode");
+            soundBank.renderLock().unlock();
+        }
+    }
+
+
+    /**
+     * The format of the rendered samples and the quality of the encoded file.
+     *
+     * @param sampleRate  The sample rate in Hz
+     * @param channels    The amount of channels
+     * @param quality     The VBR quality between 0 and 100 (only used by encoders with a quality based VBR mode)
+     * @param bitrateKbps The expected average bitrate in kbit/s
+     */
+    record Settings(int sampleRate, int channels, int quality, int bitrateKbps) {
+        private static final int SIZE_OVERHEAD = 16 * 1024; //Headers, padding and the last frames
+
+        public FloatAudioFormat format() {
+            return new FloatAudioFormat(this.sampleRate, this.channels);
+        }
+
+        public long predictSize(final float lengthInSeconds) {
+            return (long) ((lengthInSeconds + 1) * this.bitrateKbps * 1000 / 8) + SIZE_OVERHEAD;
+        }
+
+        @Override
+        public String toString() {
+            return (this.sampleRate / 1000F) + " kHz " + (this.channels == 1 ? "mono" : "stereo") + " ~" + this.bitrateKbps + " kbps";
+        }
+    }
+
+    /**
+     * Receives the rendered samples of a song in order.
+     */
+    @FunctionalInterface
+    interface SampleConsumer {
+        /**
+         * The samples are only valid during the call, the array is reused for the following samples.
+         *
+         * @param samples The interleaved samples starting at index {@code 0}
+         * @param length  The amount of samples, always a multiple of the channel count
+         * @throws Exception If consuming the samples failed
+         */
+        void accept(final float[] samples, final int length) throws Exception;
+    }
+
+    /**
+     * @param output   The pooled encoded data
+     * @param settings The settings the data was encoded with
+     */
+    record Encoded(ChunkedOutput output, Settings settings) {
+    }
+
+}
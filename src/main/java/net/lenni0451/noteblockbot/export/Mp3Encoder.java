@@ -1,65 +1,118 @@
 package net.lenni0451.noteblockbot.export;
 
 import com.sun.jna.Pointer;
-import net.raphimc.audiomixer.util.FloatAudioFormat;
+import net.lenni0451.noteblockbot.data.RenderCache;
+import net.lenni0451.noteblockbot.task.TaskHandle;
+import net.lenni0451.noteblockbot.utils.BufferPool;
+import net.lenni0451.noteblockbot.utils.ChunkedOutput;
 import net.raphimc.noteblocklib.format.nbs.model.NbsSong;
-import net.raphimc.noteblocktool.audio.SoundMap;
 import net.raphimc.noteblocktool.audio.library.LameLibrary;
-import net.raphimc.noteblocktool.audio.renderer.SongRenderer;
-import net.raphimc.noteblocktool.audio.renderer.impl.ProgressSongRenderer;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
+import java.util.List;
 
-public class Mp3Encoder {
+public class Mp3Encoder implements AudioEncoder {
 
-    private static final int MAX_SOUNDS = 16384;
-    private static final FloatAudioFormat FORMAT = new FloatAudioFormat(48000, 2);
-    private static final int QUALITY = 50;
+    public static final Mp3Encoder INSTANCE = new Mp3Encoder();
+    /**
+     * The expected bitrates are conservative averages of the VBR output for noteblock songs.
+     */
+    private static final List<Settings> SETTINGS = List.of(
+            new Settings(48000, 2, 50, 192),
+            new Settings(44100, 2, 25, 128),
+            new Settings(32000, 1, 20, 64),
+            new Settings(24000, 1, 10, 40),
+            new Settings(16000, 1, 0, 24)
+    );
+    private static final int BLOCK_FRAMES = 48000; //Up to one second of audio per encoded block
+    private static final int TRAILER_SIZE = 7200;
+    private static final BufferPool<float[]> BLOCK_BUFFERS = new BufferPool<>(() -> new float[BLOCK_FRAMES * 2], 8);
+    private static final BufferPool<byte[]> DATA_BUFFERS = new BufferPool<>(() -> new byte[(int) (1.25F * BLOCK_FRAMES + TRAILER_SIZE)], 8);
 
-    public static byte[] encode(final NbsSong song, final File soundsFolder) throws Exception {
-        SoundMap.reload(soundsFolder); //Load all custom instruments
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            float[] samples = sample(song);
+    private Mp3Encoder() {
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "mp3";
+    }
 
-            Pointer lame = LameLibrary.INSTANCE.lame_init();
-            if (lame == null) throw new IllegalStateException("Failed to initialize LAME encoder");
-            int result = LameLibrary.INSTANCE.lame_set_in_samplerate(lame, (int) FORMAT.sampleRate());
-            if (result < 0) throw new IllegalStateException("Failed to set sample rate: " + result);
-            result = LameLibrary.INSTANCE.lame_set_num_channels(lame, FORMAT.channels());
-            if (result < 0) throw new IllegalStateException("Failed to set channels: " + result);
-            result = LameLibrary.INSTANCE.lame_set_VBR(lame, LameLibrary.vbr_default);
-            if (result < 0) throw new IllegalStateException("Failed to set VBR mode: " + result);
-            result = LameLibrary.INSTANCE.lame_set_VBR_quality(lame, (1F - (QUALITY / 100F)) * 9F);
-            if (result < 0) throw new IllegalStateException("Failed to set VBR quality: " + result);
-            result = LameLibrary.INSTANCE.lame_init_params(lame);
-            if (result < 0) throw new IllegalStateException("Failed to initialize LAME parameters: " + result);
+    @Override
+    public List<Settings> getSettings() {
+        return SETTINGS;
+    }
+
+    @Override
+    public String cacheKey(final byte[] songData, final SoundBank soundBank, final Settings settings, final Preview preview) {
+        if (preview == null) { //Keep the keys of full renders stable so the disk cache stays valid
+            return RenderCache.key("mp3", songData, settings.format().sampleRate(), settings.channels(), settings.quality(), soundBank.getFingerprint());
+        } else {
+            return RenderCache.key("mp3", songData, settings.format().sampleRate(), settings.channels(), settings.quality(), soundBank.getFingerprint(), preview);
+        }
+    }
 
-            int frameCount = samples.length / FORMAT.channels();
-            byte[] dataBuffer = new byte[(int) (1.25F * frameCount + 7200)];
-            int dataLength = LameLibrary.INSTANCE.lame_encode_buffer_interleaved_ieee_float(lame, samples, frameCount, dataBuffer, dataBuffer.length);
-            if (dataLength < 0) throw new IllegalStateException("Failed to encode buffer: " + dataLength);
-            byte[] trailerBuffer = new byte[7200];
-            int trailerLength = LameLibrary.INSTANCE.lame_encode_flush(lame, trailerBuffer, trailerBuffer.length);
+    /**
+     * VBR frames can use up to 320 kbit/s, independent of the expected bitrate.
+     */
+    @Override
+    public long outputBytesPerSecond(final Settings settings) {
+        return 40_000;
+    }
+
+    @Override
+    public ChunkedOutput encode(final NbsSong song, final SoundBank soundBank, final Settings settings, final TaskHandle handle) throws Exception {
+        return this.encode(song, soundBank, settings, MAX_SOUNDS, handle);
+    }
+
+    ChunkedOutput encode(final NbsSong song, final SoundBank soundBank, final Settings settings, final int maxSounds, final TaskHandle handle) throws Exception {
+        Pointer lame = LameLibrary.INSTANCE.lame_init();
+        if (lame == null) throw new IllegalStateException("Failed to initialize LAME encoder");
+        ChunkedOutput output = new ChunkedOutput();
+        float[] blockBuffer = BLOCK_BUFFERS.take();
+        byte[] dataBuffer = DATA_BUFFERS.take();
+        boolean success = false;
+        try {
+            initLame(lame, settings);
+            int blockSize = BLOCK_FRAMES * settings.channels();
+            //Every rendered segment is encoded before the next one is mixed
+            AudioEncoder.render(song, soundBank, settings.format(), maxSounds, handle, (samples, length) -> {
+                for (int offset = 0; offset < length; offset += blockSize) {
+                    int blockLength = Math.min(blockSize, length - offset);
+                    System.arraycopy(samples, offset, blockBuffer, 0, blockLength);
+                    int dataLength = LameLibrary.INSTANCE.lame_encode_buffer_interleaved_ieee_float(lame, blockBuffer, blockLength / settings.channels(), dataBuffer, dataBuffer.length);
+                    if (dataLength < 0) throw new IllegalStateException("Failed to encode buffer: " + dataLength);
+                    output.write(dataBuffer, 0, dataLength);
+                }
+            });
+            int trailerLength = LameLibrary.INSTANCE.lame_encode_flush(lame, dataBuffer, dataBuffer.length);
             if (trailerLength < 0) throw new IllegalStateException("Failed to flush encoder: " + trailerLength);
+            output.write(dataBuffer, 0, trailerLength);
+            //The LAME tag frame is only available after encoding
             byte[] headerBuffer = new byte[LameLibrary.INSTANCE.lame_get_lametag_frame(lame, null, 0)];
             int headerLength = LameLibrary.INSTANCE.lame_get_lametag_frame(lame, headerBuffer, headerBuffer.length);
             if (headerLength < 0) throw new IllegalStateException("Failed to get LAME tag frame: " + headerLength);
-            result = LameLibrary.INSTANCE.lame_close(lame);
+            output.setHeader(headerBuffer, headerLength);
+            success = true;
+            return output;
+        } finally {
+            BLOCK_BUFFERS.release(blockBuffer);
+            DATA_BUFFERS.release(dataBuffer);
+            if (!success) output.close();
+            int result = LameLibrary.INSTANCE.lame_close(lame);
             if (result < 0) throw new IllegalStateException("Failed to close encoder: " + result);
-
-            baos.write(headerBuffer, 0, headerLength);
-            baos.write(dataBuffer, 0, dataLength);
-            baos.write(trailerBuffer, 0, trailerLength);
-            return baos.toByteArray();
         }
     }
 
-    private static float[] sample(final NbsSong song) throws Exception {
-        try (SongRenderer renderer = new ProgressSongRenderer(song, MAX_SOUNDS, true, true, FORMAT, progress -> {})) {
-            renderer.setTimingJitter(true);
-            return renderer.renderSong().samples();
-        }
+    private static void initLame(final Pointer lame, final Settings settings) {
+        int result = LameLibrary.INSTANCE.lame_set_in_samplerate(lame, settings.sampleRate());
+        if (result < 0) throw new IllegalStateException("Failed to set sample rate: " + result);
+        result = LameLibrary.INSTANCE.lame_set_num_channels(lame, settings.channels());
+        if (result < 0) throw new IllegalStateException("Failed to set channels: " + result);
+        result = LameLibrary.INSTANCE.lame_set_VBR(lame, LameLibrary.vbr_default);
+        if (result < 0) throw new IllegalStateException("Failed to set VBR mode: " + result);
+        result = LameLibrary.INSTANCE.lame_set_VBR_quality(lame, (1F - (settings.quality() / 100F)) * 9F);
+        if (result < 0) throw new IllegalStateException("Failed to set VBR quality: " + result);
+        result = LameLibrary.INSTANCE.lame_init_params(lame);
+        if (result < 0) throw new IllegalStateException("Failed to initialize LAME parameters: " + result);
     }
 
 }
@@ -0,0 +1,269 @@
+package net.lenni0451.noteblockbot.export;
+
+import club.minnced.opus.util.OpusLibrary;
+import com.sun.jna.ptr.PointerByReference;
+import net.lenni0451.noteblockbot.data.Config;
+import net.lenni0451.noteblockbot.data.RenderCache;
+import net.lenni0451.noteblockbot.task.TaskHandle;
+import net.lenni0451.noteblockbot.utils.ChunkedOutput;
+import net.raphimc.noteblocklib.format.nbs.model.NbsSong;
+import tomp2p.opus.Opus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Encodes songs as Opus in an OGG container.<br>
+ * Opus is a lot cheaper to encode than MP3 and needs a much lower bitrate for the same perceived quality.
+ * Opus always runs at 48 kHz, so the settings ladder only lowers the bitrate and the channel count.
+ */
+public class OpusEncoder implements AudioEncoder {
+
+    public static final OpusEncoder INSTANCE = new OpusEncoder();
+    private static final int SAMPLE_RATE = 48000;
+    private static final int FRAME_SIZE = 960; //20ms frames
+    private static final int MAX_PACKET_SIZE = 4000;
+    private static final int PRE_SKIP = 312; //The encoder delay of libopus at 48 kHz
+    private static final int MIN_BITRATE = 6;
+    private static final int OPUS_APPLICATION_AUDIO = 2049;
+    private static final int OPUS_SET_BITRATE_REQUEST = 4002;
+
+    private OpusEncoder() {
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "ogg";
+    }
+
+    @Override
+    public List<Settings> getSettings() {
+        int bitrate = Math.max(MIN_BITRATE, Config.Opus.bitrate);
+        return List.of(
+                new Settings(SAMPLE_RATE, 2, 0, bitrate),
+                new Settings(SAMPLE_RATE, 2, 0, Math.max(MIN_BITRATE, bitrate / 2)),
+                new Settings(SAMPLE_RATE, 1, 0, Math.max(MIN_BITRATE, bitrate / 4)),
+                new Settings(SAMPLE_RATE, 1, 0, MIN_BITRATE)
+        );
+    }
+
+    @Override
+    public String cacheKey(final byte[] songData, final SoundBank soundBank, final Settings settings, final Preview preview) {
+        if (preview == null) {
+            return RenderCache.key("opus", songData, settings.sampleRate(), settings.channels(), settings.bitrateKbps(), soundBank.getFingerprint());
+        } else {
+            return RenderCache.key("opus", songData, settings.sampleRate(), settings.channels(), settings.bitrateKbps(), soundBank.getFingerprint(), preview);
+        }
+    }
+
+    /**
+     * Opus is encoded with a constant bitrate.
+     */
+    @Override
+    public long outputBytesPerSecond(final Settings settings) {
+        return settings.bitrateKbps() * 125L;
+    }
+
+    @Override
+    public ChunkedOutput encode(final NbsSong song, final SoundBank soundBank, final Settings settings, final TaskHandle handle) throws Exception {
+        loadNatives();
+        IntBuffer error = IntBuffer.allocate(1);
+        PointerByReference encoder = Opus.INSTANCE.opus_encoder_create(SAMPLE_RATE, settings.channels(), OPUS_APPLICATION_AUDIO, error);
+        if (encoder == null || error.get(0) != 0) throw new IllegalStateException("Failed to initialize Opus encoder: " + error.get(0));
+        ChunkedOutput output = new ChunkedOutput();
+        boolean success = false;
+        try {
+            int result = Opus.INSTANCE.opus_encoder_ctl(encoder, OPUS_SET_BITRATE_REQUEST, settings.bitrateKbps() * 1000);
+            if (result < 0) throw new IllegalStateException("Failed to set bitrate: " + result);
+
+            OggWriter writer = new OggWriter(output);
+            writer.writeHeaders(settings.channels());
+            FrameEncoder frameEncoder = new FrameEncoder(encoder, writer, settings.channels());
+            AudioEncoder.render(song, soundBank, settings.format(), MAX_SOUNDS, handle, frameEncoder::write);
+            frameEncoder.finish();
+            success = true;
+            return output;
+        } finally {
+            if (!success) output.close();
+            Opus.INSTANCE.opus_encoder_destroy(encoder);
+        }
+    }
+
+    private static synchronized void loadNatives() throws IOException {
+        if (OpusLibrary.isInitialized()) return;
+        if (!OpusLibrary.loadFromJar()) throw new IllegalStateException("Opus is not supported on this platform");
+    }
+
+
+    /**
+     * Splits the rendered samples into Opus frames and writes the encoded packets.<br>
+     * The last packet has to end the stream, so every packet is only written once the next one has been encoded.
+     */
+    private static class FrameEncoder {
+        private final PointerByReference encoder;
+        private final OggWriter writer;
+        private final int channels;
+        private final ShortBuffer frameBuffer;
+        private final ByteBuffer packetBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        private final byte[] packet = new byte[MAX_PACKET_SIZE];
+        private int packetLength = -1;
+        private long encodedFrames = 0;
+
+        public FrameEncoder(final PointerByReference encoder, final OggWriter writer, final int channels) {
+            this.encoder = encoder;
+            this.writer = writer;
+            this.channels = channels;
+            this.frameBuffer = ShortBuffer.allocate(FRAME_SIZE * channels);
+        }
+
+        public void write(final float[] samples, final int length) {
+            for (int i = 0; i < length; i++) {
+                this.frameBuffer.put((short) (Math.max(-1F, Math.min(1F, samples[i])) * Short.MAX_VALUE));
+                if (!this.frameBuffer.hasRemaining()) this.encodeFrame();
+            }
+        }
+
+        /**
+         * Encode the remaining samples and end the stream.<br>
+         * A song without samples still needs one packet to end the stream.
+         */
+        public void finish() {
+            if (this.frameBuffer.position() > 0 || this.packetLength == -1) this.encodeFrame();
+            this.writer.writePacket(this.packet, this.packetLength, PRE_SKIP + this.encodedFrames, true);
+        }
+
+        private void encodeFrame() {
+            int frameLength = this.frameBuffer.position();
+            while (this.frameBuffer.hasRemaining()) this.frameBuffer.put((short) 0); //Pad the last frame with silence
+            this.frameBuffer.flip();
+            if (this.packetLength != -1) this.writer.writePacket(this.packet, this.packetLength, PRE_SKIP + this.encodedFrames, false);
+
+            this.packetBuffer.clear();
+            this.packetLength = Opus.INSTANCE.opus_encode(this.encoder, this.frameBuffer, FRAME_SIZE, this.packetBuffer, this.packetBuffer.capacity());
+            if (this.packetLength < 0) throw new IllegalStateException("Failed to encode frame: " + this.packetLength);
+            this.packetBuffer.get(this.packet, 0, this.packetLength);
+            this.encodedFrames += frameLength / this.channels;
+            this.frameBuffer.clear();
+        }
+    }
+
+    /**
+     * Writes Opus packets into OGG pages.<br>
+     * Pages are flushed after about one second of audio or when the segment table is full.
+     */
+    private static class OggWriter {
+        private static final int SERIAL = 0x4E424F54; //The stream is the only one in the file, so the serial can be constant
+        private static final int MAX_SEGMENTS = 255;
+        private static final int PACKETS_PER_PAGE = 50;
+        private static final int[] CRC_TABLE = new int[256];
+
+        static {
+            for (int i = 0; i < CRC_TABLE.length; i++) {
+                int crc = i << 24;
+                for (int bit = 0; bit < 8; bit++) {
+                    crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+                }
+                CRC_TABLE[i] = crc;
+            }
+        }
+
+        private final ChunkedOutput output;
+        private final byte[] pageData = new byte[MAX_SEGMENTS * 255]; //The segment table limits the size of a page
+        private final byte[] segments = new byte[MAX_SEGMENTS];
+        private int pageLength = 0;
+        private int segmentCount = 0;
+        private int packetCount = 0;
+        private int sequence = 0;
+        private long granulePosition = 0;
+
+        public OggWriter(final ChunkedOutput output) {
+            this.output = output;
+        }
+
+        public void writeHeaders(final int channels) {
+            ByteBuffer head = ByteBuffer.allocate(19).order(ByteOrder.LITTLE_ENDIAN);
+            head.put("OpusHead".getBytes(StandardCharsets.US_ASCII));
+            head.put((byte) 1); //Version
+            head.put((byte) channels);
+            head.putShort((short) PRE_SKIP);
+            head.putInt(SAMPLE_RATE);
+            head.putShort((short) 0); //Output gain
+            head.put((byte) 0); //Channel mapping family
+            this.writePacket(head.array(), head.capacity(), 0, false);
+            this.flushPage(0x02); //Beginning of stream
+
+            byte[] vendor = "NoteBlockBot".getBytes(StandardCharsets.UTF_8);
+            ByteBuffer tags = ByteBuffer.allocate(16 + vendor.length).order(ByteOrder.LITTLE_ENDIAN);
+            tags.put("OpusTags".getBytes(StandardCharsets.US_ASCII));
+            tags.putInt(vendor.length);
+            tags.put(vendor);
+            tags.putInt(0); //No user comments
+            this.writePacket(tags.array(), tags.capacity(), 0, false);
+            this.flushPage(0);
+        }
+
+        /**
+         * Add a packet to the current page.<br>
+         * The headers have to be on their own pages, audio packets are flushed automatically.
+         *
+         * @param packet          The packet data
+         * @param length          The length of the packet
+         * @param granulePosition The amount of samples per channel after this packet including the pre-skip
+         * @param last            If this is the last packet of the stream
+         */
+        public void writePacket(final byte[] packet, final int length, final long granulePosition, final boolean last) {
+            int packetSegments = length / 255 + 1;
+            if (this.segmentCount + packetSegments > MAX_SEGMENTS) this.flushPage(0);
+            for (int i = 0; i < packetSegments - 1; i++) this.segments[this.segmentCount++] = (byte) 255;
+            this.segments[this.segmentCount++] = (byte) (length % 255);
+            System.arraycopy(packet, 0, this.pageData, this.pageLength, length);
+            this.pageLength += length;
+            this.packetCount++;
+            this.granulePosition = granulePosition;
+
+            if (last) this.flushPage(0x04); //End of stream
+            else if (granulePosition > 0 && this.packetCount >= PACKETS_PER_PAGE) this.flushPage(0);
+        }
+
+        /**
+         * Write the current page with the granule position of the last packet on it.
+         *
+         * @param flags The header type flags of the page
+         */
+        private void flushPage(final int flags) {
+            ByteBuffer header = ByteBuffer.allocate(27 + this.segmentCount).order(ByteOrder.LITTLE_ENDIAN);
+            header.put("OggS".getBytes(StandardCharsets.US_ASCII));
+            header.put((byte) 0); //Version
+            header.put((byte) flags);
+            header.putLong(this.granulePosition);
+            header.putInt(SERIAL);
+            header.putInt(this.sequence++);
+            header.putInt(0); //Checksum, filled in below
+            header.put((byte) this.segmentCount);
+            header.put(this.segments, 0, this.segmentCount);
+
+            int crc = crc(0, header.array(), header.capacity());
+            crc = crc(crc, this.pageData, this.pageLength);
+            header.putInt(22, crc);
+            this.output.write(header.array(), 0, header.capacity());
+            this.output.write(this.pageData, 0, this.pageLength);
+
+            this.pageLength = 0;
+            this.segmentCount = 0;
+            this.packetCount = 0;
+        }
+
+        private static int crc(int crc, final byte[] data, final int length) {
+            for (int i = 0; i < length; i++) {
+                crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xFF];
+            }
+            return crc;
+        }
+    }
+
+}
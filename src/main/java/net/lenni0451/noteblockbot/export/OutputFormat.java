@@ -0,0 +1,21 @@
+package net.lenni0451.noteblockbot.export;
+
+/**
+ * The audio formats rendered songs can be uploaded as.
+ */
+public enum OutputFormat {
+
+    MP3(Mp3Encoder.INSTANCE),
+    OPUS(OpusEncoder.INSTANCE);
+
+    private final AudioEncoder encoder;
+
+    OutputFormat(final AudioEncoder encoder) {
+        this.encoder = encoder;
+    }
+
+    public AudioEncoder getEncoder() {
+        return this.encoder;
+    }
+
+}
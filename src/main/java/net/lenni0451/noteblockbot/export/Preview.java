@@ -0,0 +1,87 @@
+package net.lenni0451.noteblockbot.export;
+
+import net.raphimc.noteblocklib.model.song.Song;
+
+import java.util.TreeSet;
+
+/**
+ * A time window of a song which is rendered instead of the whole song.<br>
+ * Notes outside the window are removed from the song before rendering, so the renderer only has to mix the window.
+ *
+ * @param start  The start of the window in seconds
+ * @param length The length of the window in seconds
+ */
+public record Preview(float start, float length) {
+
+    /**
+     * Check if the window covers the whole song, in which case a full render is cheaper than a preview.
+     *
+     * @param songLength The length of the song in seconds
+     * @return If the whole song is inside the window
+     */
+    public boolean coversSong(final float songLength) {
+        return this.start <= 0 && this.length >= songLength;
+    }
+
+    /**
+     * Remove all notes outside the window and move the window to the start of the song.
+     *
+     * @param song The song to cut
+     */
+    public void apply(final Song song) {
+        var notes = song.getNotes();
+        var tempoEvents = song.getTempoEvents();
+        int length = notes.getLengthInTicks();
+        int startTick = length;
+        int endTick = length;
+        float time = 0;
+        for (int tick = 0; tick < length; tick++) {
+            if (startTick == length && time >= this.start) startTick = tick;
+            if (time >= this.start + this.length) {
+                endTick = tick;
+                break;
+            }
+            time += 1F / tempoEvents.get(tick);
+        }
+        cut(song, startTick, endTick);
+    }
+
+    @Override
+    public String toString() {
+        return formatTime(this.start) + "-" + formatTime(this.start + this.length);
+    }
+
+    /**
+     * Remove all notes outside a range of ticks and move the range to the start of the song.
+     *
+     * @param song      The song to cut
+     * @param startTick The first tick of the range
+     * @param endTick   The tick after the end of the range
+     */
+    static void cut(final Song song, final int startTick, final int endTick) {
+        var notes = song.getNotes();
+        var tempoEvents = song.getTempoEvents();
+        //Ticks are moved in ascending order, so a moved tick never overwrites one that has not been visited yet
+        for (int tick : new TreeSet<>(notes.getTicks())) {
+            if (tick >= startTick && tick < endTick) {
+                if (startTick == 0) continue;
+                notes.set(tick - startTick, notes.get(tick));
+            }
+            notes.remove(tick);
+        }
+        if (startTick > 0) {
+            float startTempo = tempoEvents.get(startTick);
+            for (int tick : new TreeSet<>(tempoEvents.getTicks())) {
+                if (tick > startTick && tick < endTick) tempoEvents.set(tick - startTick, tempoEvents.get(tick));
+                tempoEvents.remove(tick);
+            }
+            tempoEvents.set(0, startTempo);
+        }
+    }
+
+    private static String formatTime(final float seconds) {
+        int time = (int) seconds;
+        return time / 60 + ":" + String.format("%02d", time % 60);
+    }
+
+}
@@ -0,0 +1,286 @@
+package net.lenni0451.noteblockbot.export;
+
+import net.lenni0451.noteblockbot.data.Config;
+import net.lenni0451.noteblockbot.task.MemoryBudget;
+import net.lenni0451.noteblockbot.task.TaskHandle;
+import net.raphimc.audiomixer.util.FloatAudioFormat;
+import net.raphimc.noteblocklib.format.nbs.model.NbsSong;
+import net.raphimc.noteblocktool.audio.renderer.SongRenderer;
+import net.raphimc.noteblocktool.audio.renderer.impl.ProgressSongRenderer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Renders the samples of songs in segments of a fixed length, so the memory usage does not depend on the length of the song.<br>
+ * Every segment contains the notes of one time window of the song. The sounds of a segment keep playing after the end of its window,
+ * so the segments overlap and are mixed together by adding their samples at the start time of their window.
+ * Once a segment has been mixed, the samples before the start of the next window can't change anymore and are passed on, only the overlapping tail is kept.<br>
+ * The segments of long songs are rendered in parallel. They are always mixed in the order of the song, so the result does not depend on which segment finished first.
+ */
+class SegmentRenderer {
+
+    private static final float TAIL_LENGTH = 5; //The time sounds are expected to keep playing after the end of a segment
+    private static final float[] SILENCE = new float[0];
+    private static ForkJoinPool pool;
+
+    /**
+     * Estimate the peak heap usage of the rendered samples.<br>
+     * Every segment which is rendered at the same time is kept twice (mixing buffer and result), the mixed tail is kept once.
+     *
+     * @param lengthInSeconds The length of the song in seconds
+     * @param format          The format of the samples
+     * @return The estimated memory usage in bytes
+     */
+    static long estimateMemory(final float lengthInSeconds, final FloatAudioFormat format) {
+        long segmentSamples = (long) ((getSegmentLength() + TAIL_LENGTH) * format.sampleRate()) * format.channels();
+        return (getParallelSegments(lengthInSeconds) * 2L + 1) * segmentSamples * Float.BYTES;
+    }
+
+    /**
+     * Render the interleaved samples of a song.<br>
+     * The caller has to hold the render lock of the sound bank.
+     *
+     * @param song      The song to render
+     * @param format    The format of the samples
+     * @param maxSounds The maximum amount of sounds playing at the same time
+     * @param handle    The handle of the job
+     * @param consumer  The consumer of the rendered samples
+     * @throws Exception If rendering failed
+     */
+    static void render(final NbsSong song, final FloatAudioFormat format, final int maxSounds, final TaskHandle handle, final AudioEncoder.SampleConsumer consumer) throws Exception {
+        double[] tickTimes = getTickTimes(song);
+        render(song, tickTimes, format, maxSounds, getSegmentLength(), getParallelSegments((float) tickTimes[tickTimes.length - 1]), true, handle, consumer);
+    }
+
+    /**
+     * Render the interleaved samples of a song with a fixed segment length.<br>
+     * The allocations of the segment threads are added to the handle.
+     *
+     * @param song             The song to render
+     * @param format           The format of the samples
+     * @param maxSounds        The maximum amount of sounds playing at the same time
+     * @param segmentLength    The length of the segments in seconds
+     * @param parallelSegments The amount of segments rendered at the same time, {@code 1} renders the song on the current thread
+     * @param timingJitter     If the notes should be played with a slight random delay like in Minecraft
+     * @param handle           The handle of the job
+     * @param consumer         The consumer of the rendered samples
+     * @throws Exception If rendering failed
+     */
+    static void render(final NbsSong song, final FloatAudioFormat format, final int maxSounds, final float segmentLength, final int parallelSegments, final boolean timingJitter, final TaskHandle handle, final AudioEncoder.SampleConsumer consumer) throws Exception {
+        render(song, getTickTimes(song), format, maxSounds, segmentLength, parallelSegments, timingJitter, handle, consumer);
+    }
+
+    private static void render(final NbsSong song, final double[] tickTimes, final FloatAudioFormat format, final int maxSounds, final float segmentLength, final int parallelSegments, final boolean timingJitter, final TaskHandle handle, final AudioEncoder.SampleConsumer consumer) throws Exception {
+        List<Integer> startTicks = new ArrayList<>();
+        startTicks.add(0);
+        for (int tick = 1; tick < tickTimes.length - 1; tick++) {
+            if (tickTimes[tick] - tickTimes[startTicks.get(startTicks.size() - 1)] >= segmentLength) startTicks.add(tick);
+        }
+        startTicks.add(tickTimes.length - 1);
+        int segmentCount = startTicks.size() - 1;
+
+        //The segments share the notes of the song instead of copying all notes for every segment
+        NbsSong template = (NbsSong) song.copy();
+        for (int tick : new ArrayList<>(template.getNotes().getTicks())) template.getNotes().remove(tick);
+        int[] noteTicks = song.getNotes().getTicks().stream().mapToInt(Integer::intValue).sorted().toArray();
+
+        float[] progress = new float[segmentCount];
+        AtomicBoolean failed = new AtomicBoolean();
+        Deque<Future<float[]>> segments = new ArrayDeque<>();
+        int capacity = (int) ((Math.min(segmentLength, tickTimes[tickTimes.length - 1]) + TAIL_LENGTH) * format.sampleRate()) * format.channels();
+        Mixer mixer = new Mixer(consumer, capacity);
+        try {
+            int submitted = 0;
+            for (int i = 0; i < segmentCount; i++) {
+                while (submitted < segmentCount && submitted < i + Math.max(1, parallelSegments)) {
+                    int index = submitted++;
+                    NbsSong segment = createSegment(template, song, noteTicks, startTicks.get(index), startTicks.get(index + 1));
+                    Callable<float[]> task = () -> {
+                        if (segment.getNotes().getTicks().isEmpty()) {
+                            progress[index] = 1;
+                            return SILENCE;
+                        }
+                        return renderSamples(segment, format, maxSounds, timingJitter, handle, segmentProgress -> {
+                            if (failed.get()) throw new CancellationException();
+                            progress[index] = segmentProgress;
+                            float sum = 0;
+                            for (float value : progress) sum += value;
+                            handle.setProgress(sum / segmentCount);
+                        });
+                    };
+                    if (parallelSegments <= 1) {
+                        segments.add(CompletableFuture.completedFuture(task.call()));
+                    } else {
+                        segments.add(getPool().submit(() -> {
+                            //The pipeline only sees the allocations of the job thread
+                            long allocatedBefore = MemoryBudget.getAllocatedBytes();
+                            try {
+                                return task.call();
+                            } finally {
+                                if (allocatedBefore >= 0) handle.addAllocatedBytes(MemoryBudget.getAllocatedBytes() - allocatedBefore);
+                            }
+                        }));
+                    }
+                }
+                mixer.add(get(segments.poll()), getOffset(tickTimes[startTicks.get(i)], format));
+                mixer.flush(getOffset(tickTimes[startTicks.get(i + 1)], format));
+            }
+            mixer.finish();
+        } catch (Throwable t) {
+            failed.set(true); //Abort the segments which are still rendering
+            throw t;
+        }
+    }
+
+    /**
+     * Create a song containing the notes of a range of ticks, moved to the start of the song.
+     *
+     * @param template  A copy of the song without notes
+     * @param song      The song to take the notes from
+     * @param noteTicks The sorted ticks of the song which contain notes
+     * @param startTick The first tick of the range
+     * @param endTick   The tick after the end of the range
+     * @return The segment
+     */
+    private static NbsSong createSegment(final NbsSong template, final NbsSong song, final int[] noteTicks, final int startTick, final int endTick) {
+        NbsSong segment = (NbsSong) template.copy();
+        int index = Arrays.binarySearch(noteTicks, startTick);
+        for (int i = index < 0 ? -index - 1 : index; i < noteTicks.length && noteTicks[i] < endTick; i++) {
+            segment.getNotes().set(noteTicks[i], song.getNotes().get(noteTicks[i]));
+        }
+        Preview.cut(segment, startTick, endTick);
+        return segment;
+    }
+
+    private static float[] renderSamples(final NbsSong song, final FloatAudioFormat format, final int maxSounds, final boolean timingJitter, final TaskHandle handle, final ProgressListener listener) throws Exception {
+        //Throwing from the progress callback aborts the render
+        try (SongRenderer renderer = new ProgressSongRenderer(song, maxSounds, true, true, format, progress -> {
+            handle.check();
+            listener.update(progress);
+        })) {
+            renderer.setTimingJitter(timingJitter);
+            return renderer.renderSong().samples();
+        }
+    }
+
+    /**
+     * Get the time at the start of every tick of a song.
+     *
+     * @return The times in seconds, the last element is the length of the song
+     */
+    private static double[] getTickTimes(final NbsSong song) {
+        var tempoEvents = song.getTempoEvents();
+        int length = song.getNotes().getLengthInTicks();
+        double[] tickTimes = new double[length + 1];
+        for (int tick = 0; tick < length; tick++) {
+            tickTimes[tick + 1] = tickTimes[tick] + 1D / tempoEvents.get(tick);
+        }
+        return tickTimes;
+    }
+
+    private static float getSegmentLength() {
+        return Math.max(1, Config.ParallelRender.segmentLength);
+    }
+
+    private static int getParallelSegments(final float lengthInSeconds) {
+        if (Config.ParallelRender.minLength <= 0 || lengthInSeconds <= Config.ParallelRender.minLength) return 1;
+        return getParallelism();
+    }
+
+    /**
+     * @return The index of the first sample of a segment starting at the given time
+     */
+    private static long getOffset(final double time, final FloatAudioFormat format) {
+        return Math.round(time * format.sampleRate()) * format.channels();
+    }
+
+    private static float[] get(final Future<float[]> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception exception) throw exception;
+            throw e;
+        }
+    }
+
+    private static int getParallelism() {
+        return Config.ParallelRender.parallelism <= 0 ? Runtime.getRuntime().availableProcessors() : Config.ParallelRender.parallelism;
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) pool = new ForkJoinPool(getParallelism());
+        return pool;
+    }
+
+
+    @FunctionalInterface
+    private interface ProgressListener {
+        void update(final float progress);
+    }
+
+    /**
+     * Mixes the overlapping segments and passes the complete samples to the consumer.<br>
+     * The buffer only contains the samples which can still be changed by the following segments, everything after them is silent.
+     */
+    private static class Mixer {
+        private final AudioEncoder.SampleConsumer consumer;
+        private float[] buffer;
+        private int length = 0;
+        private long position = 0; //The index of the first sample in the buffer
+
+        private Mixer(final AudioEncoder.SampleConsumer consumer, final int capacity) {
+            this.consumer = consumer;
+            this.buffer = new float[Math.max(1, capacity)];
+        }
+
+        /**
+         * Add the samples of a segment.
+         *
+         * @param samples The samples of the segment
+         * @param offset  The index of the first sample, it must not be before the samples which have already been passed on
+         */
+        private void add(final float[] samples, final long offset) {
+            int start = Math.toIntExact(offset - this.position);
+            int end = start + samples.length;
+            if (end > this.buffer.length) this.buffer = Arrays.copyOf(this.buffer, Math.max(end, this.buffer.length * 2));
+            for (int i = 0; i < samples.length; i++) this.buffer[start + i] += samples[i];
+            this.length = Math.max(this.length, end);
+        }
+
+        /**
+         * Pass all samples before the given index to the consumer.<br>
+         * Gaps without any sound are passed as silence in blocks of the buffer size.
+         *
+         * @param until The index of the first sample which is kept
+         * @throws Exception If the consumer failed
+         */
+        private void flush(final long until) throws Exception {
+            while (this.position < until) {
+                int count = (int) Math.min(until - this.position, this.length > 0 ? this.length : this.buffer.length);
+                this.consumer.accept(this.buffer, count);
+                if (this.length > 0) {
+                    System.arraycopy(this.buffer, count, this.buffer, 0, this.length - count);
+                    Arrays.fill(this.buffer, this.length - count, this.length, 0);
+                    this.length -= count;
+                }
+                this.position += count;
+            }
+        }
+
+        private void finish() throws Exception {
+            this.flush(this.position + this.length);
+        }
+    }
+
+}
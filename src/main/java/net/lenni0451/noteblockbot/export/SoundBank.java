@@ -0,0 +1,114 @@
+package net.lenni0451.noteblockbot.export;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+import net.raphimc.noteblocktool.audio.SoundMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * The sounds used for rendering songs.<br>
+ * The sounds are loaded once and only reloaded when the sounds folder changes.
+ * Renders hold the read lock while accessing the sounds, so reloading waits until all running renders are finished.
+ */
+@Slf4j
+public class SoundBank {
+
+    private final File soundsFolder;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile String fingerprint;
+
+    public SoundBank(final File soundsFolder) throws IOException {
+        this.soundsFolder = soundsFolder;
+        this.soundsFolder.mkdirs();
+        this.reload();
+        this.startWatcher();
+    }
+
+    /**
+     * Get a fingerprint of the currently loaded sounds.<br>
+     * It changes whenever a sound file is added, removed or modified.
+     *
+     * @return The fingerprint
+     */
+    public String getFingerprint() {
+        return this.fingerprint;
+    }
+
+    /**
+     * Get the lock which has to be held while rendering a song.
+     *
+     * @return The read lock
+     */
+    public Lock renderLock() {
+        return this.lock.readLock();
+    }
+
+    /**
+     * Reload all sounds from the sounds folder.<br>
+     * This blocks until all running renders are finished.
+     */
+    public void reload() {
+        this.lock.writeLock().lock();
+        try {
+            SoundMap.reload(this.soundsFolder);
+            this.fingerprint = this.calculateFingerprint();
+            log.info("Loaded sounds from {} (fingerprint {})", this.soundsFolder, this.fingerprint);
+        } catch (Throwable t) {
+            log.error("Failed to load sounds from {}", this.soundsFolder, t);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private String calculateFingerprint() throws IOException {
+        Hasher hasher = Hashing.md5().newHasher();
+        try (Stream<Path> files = Files.walk(this.soundsFolder.toPath())) {
+            files.filter(Files::isRegularFile).sorted().forEach(file -> {
+                File f = file.toFile();
+                hasher.putString(this.soundsFolder.toPath().relativize(file).toString(), StandardCharsets.UTF_8);
+                hasher.putLong(f.length());
+                hasher.putLong(f.lastModified());
+            });
+        }
+        return hasher.hash().toString();
+    }
+
+    private void startWatcher() throws IOException {
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        try (Stream<Path> directories = Files.walk(this.soundsFolder.toPath())) {
+            for (Path directory : directories.filter(Files::isDirectory).toList()) {
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        }
+        Thread thread = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    WatchKey key = watchService.take();
+                    //Wait for more changes to prevent reloading for every single file that is copied into the folder
+                    do {
+                        key.pollEvents();
+                        key.reset();
+                    } while ((key = watchService.poll(2, TimeUnit.SECONDS)) != null);
+                    this.reload();
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Throwable t) {
+                    log.error("An error occurred while watching the sounds folder", t);
+                }
+            }
+        }, "SoundBank-Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+}
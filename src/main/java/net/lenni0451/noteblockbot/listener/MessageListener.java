@@ -2,16 +2,38 @@ package net.lenni0451.noteblockbot.listener;
 
 import com.google.common.hash.Hashing;
 import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.components.actionrow.ActionRow;
+import net.dv8tion.jda.api.components.buttons.Button;
 import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageReference;
+import net.dv8tion.jda.api.entities.channel.middleman.GuildMessageChannel;
 import net.dv8tion.jda.api.entities.emoji.Emoji;
+import net.dv8tion.jda.api.events.interaction.component.ButtonInteractionEvent;
+import net.dv8tion.jda.api.events.message.MessageBulkDeleteEvent;
+import net.dv8tion.jda.api.events.message.MessageDeleteEvent;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import net.dv8tion.jda.api.requests.restaction.MessageCreateAction;
 import net.dv8tion.jda.api.utils.FileUpload;
 import net.lenni0451.noteblockbot.Main;
 import net.lenni0451.noteblockbot.data.Config;
+import net.lenni0451.noteblockbot.data.CostModel;
+import net.lenni0451.noteblockbot.data.InteractionLogger;
 import net.lenni0451.noteblockbot.data.RateLimiter;
+import net.lenni0451.noteblockbot.data.RenderCache;
 import net.lenni0451.noteblockbot.data.SQLiteDB;
-import net.lenni0451.noteblockbot.export.Mp3Encoder;
+import net.lenni0451.noteblockbot.data.TaskJournal;
+import net.lenni0451.noteblockbot.export.AudioEncoder;
+import net.lenni0451.noteblockbot.export.Preview;
+import net.lenni0451.noteblockbot.metrics.Metrics;
+import net.lenni0451.noteblockbot.task.PipelineJob;
+import net.lenni0451.noteblockbot.task.ProgressUpdater;
+import net.lenni0451.noteblockbot.task.TaskHandle;
+import net.lenni0451.noteblockbot.task.TaskQueue;
+import net.lenni0451.noteblockbot.utils.ChunkedOutput;
+import net.lenni0451.noteblockbot.utils.MessageException;
+import net.lenni0451.noteblockbot.utils.NbsScanner;
 import net.lenni0451.noteblockbot.utils.NetUtils;
 import net.lenni0451.noteblockbot.utils.SongInfo;
 import net.raphimc.noteblocklib.NoteBlockLib;
@@ -19,11 +41,17 @@ import net.raphimc.noteblocklib.format.SongFormat;
 import net.raphimc.noteblocklib.format.nbs.model.NbsSong;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.File;
-import java.sql.PreparedStatement;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 @Slf4j
 public class MessageListener extends ListenerAdapter {
@@ -32,72 +60,416 @@ public class MessageListener extends ListenerAdapter {
     private static final Emoji RATE_LIMITED = Emoji.fromUnicode("🐌");
     private static final Emoji ERROR = Emoji.fromUnicode("❌");
     private static final Pattern URL_PATTERN = Pattern.compile("https?://\\S*");
+    private static final Pattern PREVIEW_PATTERN = Pattern.compile("(?i)\\bpreview(?:\\s+(\\d{1,4}(?::\\d{1,2})?)\\s*-\\s*(\\d{1,4}(?::\\d{1,2})?))?\\b");
+    private static final Pattern FULL_PATTERN = Pattern.compile("(?i)\\bfull\\b");
+    private static final String RENDER_FULL = "render_full:";
+    private static final String BACKGROUND = "background";
+
+    private final Map<Long, Set<TaskHandle>> handles = new ConcurrentHashMap<>();
 
     @Override
     public void onMessageReceived(@NotNull MessageReceivedEvent event) {
         if (event.getAuthor().isBot()) return;
-        List<Runnable> tasks = new ArrayList<>();
-        this.handleNbsAttachments(event, tasks);
-        if (!tasks.isEmpty()) {
+        List<PipelineJob<?, ?>> jobs = new ArrayList<>();
+        if (this.handleNbsAttachments(event, jobs)) {
+            event.getMessage().addReaction(RATE_LIMITED).queue();
+        }
+        if (!jobs.isEmpty()) {
             event.getMessage().addReaction(CALCULATING).queue();
-            Main.getTaskQueue().add(event.getGuild().getIdLong(), tasks, () -> event.getMessage().removeReaction(CALCULATING).queue());
+            this.submit(event.getMessage(), jobs);
+        }
+    }
+
+    /**
+     * Resume the renders which have been interrupted by a restart.<br>
+     * The messages are retrieved again, renders of deleted messages are dropped.
+     *
+     * @param jda     The JDA instance
+     * @param entries The pending render jobs
+     */
+    public void resume(final JDA jda, final List<TaskJournal.Entry> entries) {
+        Map<Long, List<TaskJournal.Entry>> messages = entries.stream().collect(Collectors.groupingBy(TaskJournal.Entry::sourceId, LinkedHashMap::new, Collectors.toList()));
+        for (Map.Entry<Long, List<TaskJournal.Entry>> entry : messages.entrySet()) {
+            GuildMessageChannel channel = jda.getChannelById(GuildMessageChannel.class, entry.getValue().get(0).channelId());
+            if (channel == null) {
+                entry.getValue().forEach(job -> Main.getTaskJournal().remove(job.id()));
+                continue;
+            }
+            channel.retrieveMessageById(entry.getKey()).queue(message -> {
+                log.info("Resuming {} songs of message {}", entry.getValue().size(), message.getIdLong());
+                List<PipelineJob<?, ?>> jobs = new ArrayList<>();
+                for (TaskJournal.Entry job : entry.getValue()) {
+                    //The rate limit has already been charged before the restart
+                    jobs.add(new RenderJob(message, job, RateLimiter.cost(CostModel.estimateRender(job.fileSize())), parsePreview(job.parameters()), new TaskHandle(Config.Timeouts.render)));
+                }
+                this.submit(message, jobs);
+            }, t -> {
+                log.info("Dropping {} songs of message {} because it could not be retrieved", entry.getValue().size(), entry.getKey());
+                entry.getValue().forEach(job -> Main.getTaskJournal().remove(job.id()));
+            });
+        }
+    }
+
+    /**
+     * Submit the jobs of a message to the pipeline.<br>
+     * Every job has its own handle, so a job which times out does not cancel the other songs of the message.
+     * The handles are registered for the message, deleting the message cancels all of them.
+     *
+     * @param message The message containing the songs
+     * @param jobs    The jobs to submit
+     */
+    private void submit(final Message message, final List<PipelineJob<?, ?>> jobs) {
+        long messageId = message.getIdLong();
+        List<TaskHandle> jobHandles = jobs.stream().map(PipelineJob::handle).toList();
+        this.handles.computeIfAbsent(messageId, id -> ConcurrentHashMap.newKeySet()).addAll(jobHandles);
+        try {
+            Main.getPipeline().submit(message.getGuild().getIdLong(), jobs, () -> {
+                this.removeHandles(messageId, jobHandles);
+                if (!jobHandles.stream().allMatch(TaskHandle::isCancelled)) message.removeReaction(CALCULATING).queue();
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Rejected {} songs of user {} because the pipeline is full", jobs.size(), message.getAuthor().getAsTag());
+            this.removeHandles(messageId, jobHandles);
+            message.removeReaction(CALCULATING).queue();
+            message.addReaction(RATE_LIMITED).queue();
         }
     }
 
-    private void handleNbsAttachments(final MessageReceivedEvent event, final List<Runnable> tasks) {
+    private void removeHandles(final long messageId, final List<TaskHandle> jobHandles) {
+        this.handles.computeIfPresent(messageId, (id, handles) -> {
+            jobHandles.forEach(handles::remove);
+            return handles.isEmpty() ? null : handles;
+        });
+    }
+
+    @Override
+    public void onButtonInteraction(@NotNull ButtonInteractionEvent event) {
+        if (!event.getComponentId().startsWith(RENDER_FULL)) return;
+        String[] parts = event.getComponentId().substring(RENDER_FULL.length()).split(":");
+        if (event.getUser().getIdLong() != Long.parseLong(parts[0])) {
+            event.reply("Only the author of the song can request the full render").setEphemeral(true).queue();
+            return;
+        }
+        MessageReference reference = event.getMessage().getMessageReference();
+        if (reference == null || !event.isFromGuild()) return;
+
+        event.deferEdit().queue();
+        reference.resolve().queue(message -> {
+            int index = Integer.parseInt(parts[1]);
+            if (index >= message.getAttachments().size()) return;
+            Message.Attachment attachment = message.getAttachments().get(index);
+            long cost = RateLimiter.cost(CostModel.estimateRender(attachment.getSize()));
+            if (!RateLimiter.tryConsume(message.getAuthor().getIdLong(), message.getGuild().getIdLong(), cost)) {
+                event.getHook().sendMessage("You are being rate limited. Please wait a bit before requesting the full render 🐌").setEphemeral(true).queue();
+                return;
+            }
+
+            log.info("User {} requested the full render of song {}", message.getAuthor().getAsTag(), attachment.getFileName());
+            event.getHook().editOriginalComponents(ActionRow.of(event.getButton().asDisabled())).queue();
+            message.addReaction(CALCULATING).queue();
+            TaskJournal.Entry entry = this.createEntry(message, attachment, BACKGROUND);
+            this.submit(message, List.of(new RenderJob(message, entry, cost, null, new TaskHandle(Config.Timeouts.render))));
+        }, t -> event.getHook().sendMessage("The original message could not be found").setEphemeral(true).queue());
+    }
+
+    @Override
+    public void onMessageDelete(@NotNull MessageDeleteEvent event) {
+        this.cancel(event.getMessageIdLong());
+    }
+
+    @Override
+    public void onMessageBulkDelete(@NotNull MessageBulkDeleteEvent event) {
+        for (String messageId : event.getMessageIds()) this.cancel(Long.parseLong(messageId));
+    }
+
+    private void cancel(final long messageId) {
+        Set<TaskHandle> handles = this.handles.remove(messageId);
+        if (handles != null) {
+            log.info("Cancelling songs of deleted message {}", messageId);
+            handles.forEach(TaskHandle::cancel);
+        }
+    }
+
+    private boolean handleNbsAttachments(final MessageReceivedEvent event, final List<PipelineJob<?, ?>> jobs) {
         List<Message.Attachment> nbsFiles = event.getMessage().getAttachments().stream()
                 .filter(attachment -> attachment.getFileExtension() != null)
                 .filter(attachment -> attachment.getFileExtension().equalsIgnoreCase("nbs"))
                 .toList();
+        if (nbsFiles.isEmpty()) return false;
+        Preview preview = this.requestedPreview(event.getMessage());
+        boolean rateLimited = false;
         for (Message.Attachment attachment : nbsFiles) {
-            if (!RateLimiter.tryUser(event.getAuthor().getIdLong()) || !RateLimiter.tryGuild(event.getGuild().getIdLong())) {
-                if (tasks.stream().noneMatch(t -> t instanceof SendRateLimitReactionTask)) {
-                    tasks.add(new SendRateLimitReactionTask(event.getMessage()));
-                }
+            if (attachment.getSize() > Config.SongLimits.maxNbsFileSize) {
+                event.getMessage().reply(attachment.getFileName() + ": The file is too large (Max: " + Config.SongLimits.maxNbsFileSize + " bytes)").queue();
+                continue;
+            }
+            long cost = RateLimiter.cost(CostModel.estimateRender(attachment.getSize()));
+            if (!RateLimiter.tryConsume(event.getAuthor().getIdLong(), event.getGuild().getIdLong(), cost)) {
+                rateLimited = true;
                 continue;
             }
 
             log.info("User {} uploaded song {}", event.getAuthor().getAsTag(), attachment.getFileName());
-            tasks.add(() -> this.processSong(event.getMessage(), attachment.getFileName(), attachment.getUrl()));
+            TaskJournal.Entry entry = this.createEntry(event.getMessage(), attachment, preview == null ? "" : preview.start() + "," + preview.length());
+            jobs.add(new RenderJob(event.getMessage(), entry, cost, preview, new TaskHandle(Config.Timeouts.render)));
         }
+        return rateLimited;
     }
 
-    private void processSong(final Message message, final String fileName, final String url) {
-        try {
-            long start = System.currentTimeMillis();
-            byte[] songData = NetUtils.get(url).getContent().getAsBytes();
-            NbsSong song = (NbsSong) NoteBlockLib.readSong(songData, SongFormat.NBS);
-            byte[] mp3Data = Mp3Encoder.encode(song, new File("Sounds"));
+    private TaskJournal.Entry createEntry(final Message message, final Message.Attachment attachment, final String parameters) {
+        return new TaskJournal.Entry(0, TaskJournal.MP3, message.getGuild().getIdLong(), message.getChannel().getIdLong(), message.getIdLong(), null,
+                message.getAuthor().getIdLong(), message.getAuthor().getAsTag(), message.getTimeCreated().toInstant().toEpochMilli(),
+                attachment.getFileName(), attachment.getSize(), attachment.getUrl(), parameters);
+    }
+
+    /**
+     * Get the preview window requested by a message.<br>
+     * {@code preview} renders the first seconds of the song, {@code preview 1:30-2:00} renders a segment and {@code full} always renders the whole song.<br>
+     * Without any keyword the preview length of the guild is used.
+     *
+     * @param message The message containing the songs
+     * @return The requested preview or {@code null} if the whole song should be rendered
+     */
+    private Preview requestedPreview(final Message message) {
+        String content = message.getContentRaw();
+        if (FULL_PATTERN.matcher(content).find()) return null;
+        Matcher matcher = PREVIEW_PATTERN.matcher(content);
+        if (matcher.find()) {
+            if (matcher.group(1) == null) return new Preview(0, Config.Preview.defaultLength);
+            int start = parseTime(matcher.group(1));
+            int end = parseTime(matcher.group(2));
+            if (end > start) return new Preview(start, Math.min(end - start, Config.Preview.maxLength));
+        }
+        int previewLength = Main.getGuildSettings().get(message.getGuild().getIdLong()).previewLength();
+        return previewLength > 0 ? new Preview(0, previewLength) : null;
+    }
+
+    private static int parseTime(final String time) {
+        int separator = time.indexOf(':');
+        if (separator == -1) return Integer.parseInt(time);
+        return Integer.parseInt(time.substring(0, separator)) * 60 + Integer.parseInt(time.substring(separator + 1));
+    }
+
+    private static Preview parsePreview(final String parameters) {
+        if (parameters.isEmpty() || parameters.equals(BACKGROUND)) return null;
+        String[] parts = parameters.split(",");
+        return new Preview(Float.parseFloat(parts[0]), Float.parseFloat(parts[1]));
+    }
+
+
+    /**
+     * @param preview The requested preview window or {@code null} to render the whole song
+     */
+    private record RenderJob(Message message, TaskJournal.Entry entry, long chargedCost, Preview preview, TaskHandle handle) implements PipelineJob<DownloadedSong, RenderResult> {
+        @Override
+        public TaskJournal.Entry journalEntry() {
+            return this.entry;
+        }
+
+        @Override
+        public TaskQueue.Priority priority() {
+            if (this.entry.parameters().equals(BACKGROUND)) return TaskQueue.Priority.BACKGROUND;
+            return this.preview != null ? TaskQueue.Priority.INTERACTIVE : TaskQueue.Priority.HEAVY;
+        }
+
+        @Override
+        public DownloadedSong download() throws Throwable {
+            byte[] songData = NetUtils.getBytes(this.entry.url(), Config.SongLimits.maxNbsFileSize);
+            NbsScanner.SongStats stats = NbsScanner.validate(songData);
+            Preview preview = this.preview;
+            if (preview != null) {
+                if (preview.start() >= stats.lengthInSeconds()) throw new MessageException("The preview starts after the end of the song");
+                if (preview.coversSong(stats.lengthInSeconds())) preview = null;
+            }
+            AudioEncoder encoder = Main.getGuildSettings().get(this.message.getGuild().getIdLong()).format().getEncoder();
+            DownloadedSong song = new DownloadedSong(songData, stats, preview, encoder, null);
+            if (!RateLimiter.adjust(this.message.getAuthor().getIdLong(), this.message.getGuild().getIdLong(), this.chargedCost, RateLimiter.cost(CostModel.estimateRender(song.renderStats())))) {
+                throw new MessageException("The song is too large for your remaining rate limit. Please wait a bit before sending it again 🐌");
+            }
+            return song.lookupCache(this.message.getGuild().getMaxFileSize());
+        }
+
+        /**
+         * Cached songs are uploaded without parsing them if the song information has been cached as well.
+         */
+        @Override
+        public RenderResult lookup(final DownloadedSong input) {
+            CachedResult cached = input.cached;
+            if (cached.data == null || cached.metadata == null) return null;
+            int separator = cached.metadata.indexOf('\0');
+            return this.createResult(input, cached.settings, cached.data, null, true, cached.metadata.substring(0, separator), cached.metadata.substring(separator + 1), System.nanoTime());
+        }
+
+        @Override
+        public long estimateMemory(final DownloadedSong input) {
+            return input.encoder.estimateMemory(input.renderStats(), input.cached.settings);
+        }
+
+        @Override
+        public RenderResult process(final DownloadedSong input) throws Throwable {
+            ProgressUpdater progress = ProgressUpdater.forReply(this.message, () -> {
+                float renderProgress = this.handle.getProgress();
+                return renderProgress < 1 ? "Rendering " + this.entry.fileName() + " (" + (int) (renderProgress * 100) + "%) ⏱️" : "Encoding " + this.entry.fileName() + " ⏱️";
+            });
+            try {
+                return this.render(input);
+            } finally {
+                progress.stop();
+            }
+        }
+
+        private RenderResult render(final DownloadedSong input) throws Throwable {
+            long start = System.nanoTime();
+            NbsSong song = (NbsSong) NoteBlockLib.readSong(input.data, SongFormat.NBS);
+            Metrics.STAGE_DURATION.observeSince(start, "parse");
             String info = SongInfo.fromSong(song);
-            info = URL_PATTERN.matcher(info).replaceAll("<$0>");
-            String songName = fileName.substring(0, fileName.length() - 4);
+            String songName = this.entry.fileName().substring(0, this.entry.fileName().length() - 4);
             if (!song.getTitleOr("").isBlank()) songName = song.getTitle();
-            message.replyFiles(FileUpload.fromData(mp3Data, songName + ".mp3")).setContent(info).queue();
-            if (Config.logInteractions) {
-                try (PreparedStatement statement = Main.getDb().prepare("INSERT INTO \"" + SQLiteDB.MP3_CONVERSIONS + "\" (\"GuildId\", \"UserId\", \"UserName\", \"Date\", \"Source\", \"FileName\", \"FileSize\", \"FileHash\", \"ConversionDuration\") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
-                    statement.setLong(1, message.getGuild().getIdLong());
-                    statement.setLong(2, message.getAuthor().getIdLong());
-                    statement.setString(3, message.getAuthor().getAsTag());
-                    statement.setString(4, message.getTimeCreated().toString());
-                    statement.setInt(5, 0); //0=Attachment 1=NoteblockWorld
-                    statement.setString(6, fileName);
-                    statement.setInt(7, songData.length);
-                    statement.setString(8, Hashing.md5().hashBytes(songData).toString());
-                    statement.setLong(9, System.currentTimeMillis() - start);
-                    statement.execute();
+            Main.getRenderCache().put(input.metadataKey(), (songName + '\0' + info).getBytes(StandardCharsets.UTF_8));
+            if (input.cached.data != null) {
+                //The song information was not cached, but the song itself is
+                return this.createResult(input, input.cached.settings, input.cached.data, null, true, songName, info, start);
+            }
+
+            if (input.preview != null) input.preview.apply(song);
+            AudioEncoder.Encoded encoded = input.encoder.encodeToFit(song, Main.getSoundBank(), input.cached.settings, this.message.getGuild().getMaxFileSize(), this.handle);
+            return this.createResult(input, encoded.settings(), null, encoded.output(), false, songName, info, start);
+        }
+
+        private RenderResult createResult(final DownloadedSong input, final AudioEncoder.Settings settings, final byte[] audioData, final ChunkedOutput encodedData, final boolean cached, final String songName, final String info, final long start) {
+            String content = URL_PATTERN.matcher(info).replaceAll("<$0>");
+            if (input.preview != null) {
+                if (!content.isEmpty()) content += "\n";
+                content += "-# Preview of " + input.preview;
+            }
+            if (!settings.equals(input.encoder.getDefaultSettings())) {
+                if (!content.isEmpty()) content += "\n";
+                content += "-# Encoded with " + settings + " to fit the upload limit";
+            }
+            return new RenderResult(input, settings, audioData, encodedData, cached, songName, content, (System.nanoTime() - start) / 1_000_000);
+        }
+
+        @Override
+        public void publish(final RenderResult result, final Runnable uploadHandler) {
+            String fileName = result.songName + (result.song.preview == null ? "" : " (preview)") + "." + result.song.encoder.getFileExtension();
+            MessageCreateAction reply = this.message.replyFiles(result.upload(fileName)).setContent(result.info);
+            if (result.song.preview != null) {
+                int index = this.message.getAttachments().stream().map(Message.Attachment::getUrl).toList().indexOf(this.entry.url());
+                Button renderFull = Button.secondary(RENDER_FULL + this.message.getAuthor().getIdLong() + ":" + index, "Render full song");
+                reply.setComponents(ActionRow.of(index == -1 ? renderFull.asDisabled() : renderFull));
+            }
+            //The pooled data is released after the upload, so it has to be cached first
+            if (result.encodedData != null) Main.getRenderCache().put(result.song.cacheKey(result.settings), result.encodedData);
+            Metrics.BYTES.inc(result.size(), "out");
+            Runnable uploaded = () -> {
+                result.release();
+                uploadHandler.run();
+            };
+            reply.queue(sent -> uploaded.run(), t -> uploaded.run());
+            Main.getInteractionLogger().log(new InteractionLogger.Interaction(SQLiteDB.MP3_CONVERSIONS)
+                    .set("GuildId", this.message.getGuild().getIdLong())
+                    .set("UserId", this.message.getAuthor().getIdLong())
+                    .set("UserName", this.message.getAuthor().getAsTag())
+                    .set("Date", this.message.getTimeCreated().toString())
+                    .set("Timestamp", this.message.getTimeCreated().toInstant().toEpochMilli())
+                    .set("Source", 0) //0=Attachment 1=NoteblockWorld
+                    .set("FileName", this.entry.fileName())
+                    .set("FileSize", result.song.data.length)
+                    .set("FileHash", Hashing.md5().hashBytes(result.song.data).toString())
+                    .set("ConversionDuration", result.duration)
+                    .set("SongLength", result.song.renderStats().lengthInSeconds())
+                    .set("NoteCount", result.song.renderStats().noteCount())
+                    .set("Cached", result.cached ? 1 : 0));
+        }
+
+        @Override
+        public void onError(final Throwable t) {
+            if (t instanceof MessageException) {
+                log.info("Rejected song {}: {}", this.entry.fileName(), t.getMessage());
+                this.message.reply(this.entry.fileName() + ": " + t.getMessage()).queue();
+            } else {
+                log.error("Failed to render song", t);
+            }
+            this.message.addReaction(ERROR).queue();
+        }
+    }
+
+    /**
+     * @param cached The result of the cache lookup, {@code null} until the cache has been checked
+     */
+    private record DownloadedSong(byte[] data, NbsScanner.SongStats stats, Preview preview, AudioEncoder encoder, CachedResult cached) {
+        /**
+         * @return The approximate information of the part of the song that is actually rendered
+         */
+        public NbsScanner.SongStats renderStats() {
+            return this.preview == null ? this.stats : this.stats.limit(this.preview.length());
+        }
+
+        public String cacheKey(final AudioEncoder.Settings settings) {
+            return this.encoder.cacheKey(this.data, Main.getSoundBank(), settings, this.preview);
+        }
+
+        /**
+         * @return The cache key of the song name and information, which don't depend on the render settings
+         */
+        public String metadataKey() {
+            return RenderCache.key("info", this.data);
+        }
+
+        /**
+         * Find the cached result with the best settings that fits into the upload limit.<br>
+         * Results which are too large (e.g. because they were cached for a server with a higher limit) are skipped.
+         *
+         * @param maxFileSize The maximum size of the output in bytes
+         * @return A copy of this song with the cached result or the settings to start encoding with if no fitting result is cached
+         * @throws MessageException If the song is too large for the upload limit
+         */
+        public DownloadedSong lookupCache(final long maxFileSize) {
+            List<AudioEncoder.Settings> ladder = this.encoder.getSettings();
+            AudioEncoder.Settings settings = this.encoder.selectSettings(this.renderStats().lengthInSeconds(), maxFileSize);
+            for (int i = ladder.indexOf(settings); i < ladder.size(); i++) {
+                byte[] data = Main.getRenderCache().get(this.cacheKey(ladder.get(i)));
+                if (data == null || data.length <= maxFileSize) {
+                    byte[] metadata = data == null ? null : Main.getRenderCache().get(this.metadataKey());
+                    CachedResult cached = new CachedResult(ladder.get(i), data, metadata == null ? null : new String(metadata, StandardCharsets.UTF_8));
+                    return new DownloadedSong(this.data, this.stats, this.preview, this.encoder, cached);
                 }
             }
-        } catch (Throwable t) {
-            log.error("Failed to render song", t);
-            message.addReaction(ERROR).queue();
+            throw new MessageException("The rendered song is too large to be uploaded in this server");
         }
     }
 
+    /**
+     * @param settings The settings of the cached result or the settings to start encoding with
+     * @param data     The cached result or {@code null} if it has to be encoded
+     * @param metadata The cached song name and information separated by a null character or {@code null} if the song has to be parsed
+     */
+    private record CachedResult(AudioEncoder.Settings settings, byte[] data, String metadata) {
+    }
 
-    private record SendRateLimitReactionTask(Message message) implements Runnable {
-        @Override
-        public void run() {
-            this.message.addReaction(RATE_LIMITED).queue();
+    /**
+     * @param settings    The settings the song was encoded with
+     * @param audioData   The encoded song if it has been cached, otherwise {@code null}
+     * @param encodedData The pooled encoded song if it has not been cached, otherwise {@code null}
+     */
+    private record RenderResult(DownloadedSong song, AudioEncoder.Settings settings, byte[] audioData, ChunkedOutput encodedData, boolean cached, String songName, String info, long duration) {
+        public long size() {
+            return this.audioData != null ? this.audioData.length : this.encodedData.size();
+        }
+
+        /**
+         * Upload the pooled data directly instead of copying it into an array first.
+         */
+        public FileUpload upload(final String fileName) {
+            if (this.audioData != null) return FileUpload.fromData(this.audioData, fileName);
+            else return FileUpload.fromData(this.encodedData.toInputStream(), fileName);
+        }
+
+        /**
+         * Return the pooled buffers after the upload has finished.
+         */
+        public void release() {
+            if (this.encodedData != null) this.encodedData.close();
         }
     }
 
@@ -0,0 +1,36 @@
+package net.lenni0451.noteblockbot.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * A monotonically increasing counter.
+ */
+public class Counter extends Metric<DoubleAdder> {
+
+    public Counter(final String name, final String help, final String... labelNames) {
+        super(name, help, labelNames);
+    }
+
+    public void inc(final String... labelValues) {
+        this.inc(1, labelValues);
+    }
+
+    public void inc(final double amount, final String... labelValues) {
+        this.child(labelValues, k -> new DoubleAdder()).add(amount);
+    }
+
+    @Override
+    protected String getType() {
+        return "counter";
+    }
+
+    @Override
+    protected void writeSamples(final StringBuilder builder) {
+        for (Map.Entry<List<String>, DoubleAdder> entry : this.children.entrySet()) {
+            this.writeSample(builder, this.name, entry.getKey(), null, null, entry.getValue().sum());
+        }
+    }
+
+}
@@ -0,0 +1,40 @@
+package net.lenni0451.noteblockbot.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A gauge whose values are collected from a supplier when the metrics are scraped.
+ */
+public class Gauge extends Metric<Void> {
+
+    private volatile Supplier<Map<List<String>, ? extends Number>> supplier = Map::of;
+
+    public Gauge(final String name, final String help, final String... labelNames) {
+        super(name, help, labelNames);
+    }
+
+    /**
+     * Set the supplier of the gauge values.<br>
+     * The keys of the returned map are the label values.
+     *
+     * @param supplier The supplier
+     */
+    public void bind(final Supplier<Map<List<String>, ? extends Number>> supplier) {
+        this.supplier = supplier;
+    }
+
+    @Override
+    protected String getType() {
+        return "gauge";
+    }
+
+    @Override
+    protected void writeSamples(final StringBuilder builder) {
+        for (Map.Entry<List<String>, ? extends Number> entry : this.supplier.get().entrySet()) {
+            this.writeSample(builder, this.name, entry.getKey(), null, null, entry.getValue().doubleValue());
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package net.lenni0451.noteblockbot.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram with fixed bucket boundaries.
+ */
+public class Histogram extends Metric<Histogram.Child> {
+
+    private final double[] buckets;
+
+    public Histogram(final String name, final String help, final double[] buckets, final String... labelNames) {
+        super(name, help, labelNames);
+        this.buckets = buckets;
+    }
+
+    public void observe(final double value, final String... labelValues) {
+        Child child = this.child(labelValues, k -> new Child(this.buckets.length));
+        for (int i = 0; i < this.buckets.length; i++) {
+            if (value <= this.buckets[i]) {
+                child.buckets[i].increment();
+                break;
+            }
+        }
+        child.count.increment();
+        child.sum.add(value);
+    }
+
+    /**
+     * Observe the time that has passed since the given start time in seconds.
+     *
+     * @param startNanos  The start time from {@link System#nanoTime()}
+     * @param labelValues The label values
+     */
+    public void observeSince(final long startNanos, final String... labelValues) {
+        this.observe((System.nanoTime() - startNanos) / 1_000_000_000D, labelValues);
+    }
+
+    @Override
+    protected String getType() {
+        return "histogram";
+    }
+
+    @Override
+    protected void writeSamples(final StringBuilder builder) {
+        for (Map.Entry<List<String>, Child> entry : this.children.entrySet()) {
+            Child child = entry.getValue();
+            long cumulative = 0;
+            for (int i = 0; i < this.buckets.length; i++) {
+                cumulative += child.buckets[i].sum();
+                this.writeSample(builder, this.name + "_bucket", entry.getKey(), "le", String.valueOf(this.buckets[i]), cumulative);
+            }
+            this.writeSample(builder, this.name + "_bucket", entry.getKey(), "le", "+Inf", child.count.sum());
+            this.writeSample(builder, this.name + "_sum", entry.getKey(), null, null, child.sum.sum());
+            this.writeSample(builder, this.name + "_count", entry.getKey(), null, null, child.count.sum());
+        }
+    }
+
+
+    protected static class Child {
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Child(final int bucketCount) {
+            this.buckets = new LongAdder[bucketCount];
+            for (int i = 0; i < bucketCount; i++) this.buckets[i] = new LongAdder();
+        }
+    }
+
+}
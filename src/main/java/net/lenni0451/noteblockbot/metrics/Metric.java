@@ -0,0 +1,78 @@
+package net.lenni0451.noteblockbot.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A metric family with a fixed set of label names.<br>
+ * Every combination of label values has its own child which holds the actual values.
+ *
+ * @param <C> The type of the children
+ */
+public abstract class Metric<C> {
+
+    protected final String name;
+    protected final String help;
+    protected final String[] labelNames;
+    protected final Map<List<String>, C> children = new ConcurrentHashMap<>();
+
+    protected Metric(final String name, final String help, final String... labelNames) {
+        this.name = name;
+        this.help = help;
+        this.labelNames = labelNames;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Write the metric in the Prometheus text format.
+     *
+     * @param builder The builder to write to
+     */
+    public void write(final StringBuilder builder) {
+        builder.append("# HELP ").append(this.name).append(' ').append(this.help).append('\n');
+        builder.append("# TYPE ").append(this.name).append(' ').append(this.getType()).append('\n');
+        this.writeSamples(builder);
+    }
+
+    protected abstract String getType();
+
+    protected abstract void writeSamples(final StringBuilder builder);
+
+    protected C child(final String[] labelValues, final Function<List<String>, C> creator) {
+        if (labelValues.length != this.labelNames.length) {
+            throw new IllegalArgumentException("Expected " + this.labelNames.length + " label values for metric " + this.name + " but got " + labelValues.length);
+        }
+        return this.children.computeIfAbsent(List.of(labelValues), creator);
+    }
+
+    protected void writeSample(final StringBuilder builder, final String name, final List<String> labelValues, final String extraLabel, final String extraValue, final double value) {
+        builder.append(name);
+        if (!labelValues.isEmpty() || extraLabel != null) {
+            builder.append('{');
+            for (int i = 0; i < labelValues.size(); i++) {
+                if (i > 0) builder.append(',');
+                builder.append(this.labelNames[i]).append("=\"").append(escape(labelValues.get(i))).append('"');
+            }
+            if (extraLabel != null) {
+                if (!labelValues.isEmpty()) builder.append(',');
+                builder.append(extraLabel).append("=\"").append(escape(extraValue)).append('"');
+            }
+            builder.append('}');
+        }
+        builder.append(' ');
+        if (value == Double.POSITIVE_INFINITY) builder.append("+Inf");
+        else if (value == (long) value) builder.append((long) value);
+        else builder.append(value);
+        builder.append('\n');
+    }
+
+    private static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
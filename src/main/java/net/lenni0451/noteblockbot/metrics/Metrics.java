@@ -0,0 +1,34 @@
+package net.lenni0451.noteblockbot.metrics;
+
+import java.util.List;
+
+/**
+ * All metrics collected by the bot.<br>
+ * They can be scraped in the Prometheus text format using the {@link MetricsServer}.
+ */
+public class Metrics {
+
+    private static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300};
+
+    public static final Gauge TASK_QUEUE_DEPTH = new Gauge("noteblockbot_task_queue_depth", "The amount of tasks waiting in the task queue per guild and priority lane", "guild", "lane");
+    public static final Histogram TASK_QUEUE_WAIT = new Histogram("noteblockbot_task_queue_wait_seconds", "The time tasks waited in the task queue before being executed", LATENCY_BUCKETS, "lane");
+    public static final Histogram STAGE_DURATION = new Histogram("noteblockbot_stage_duration_seconds", "The duration of the processing stages", LATENCY_BUCKETS, "stage");
+    public static final Counter RATE_LIMIT_REJECTIONS = new Counter("noteblockbot_rate_limit_rejections_total", "The amount of requests rejected by the rate limiter", "bucket");
+    public static final Counter BYTES = new Counter("noteblockbot_bytes_total", "The amount of bytes downloaded and uploaded", "direction");
+    public static final Gauge MEMORY_RESERVED = new Gauge("noteblockbot_memory_reserved_bytes", "The amount of memory currently reserved by processed jobs");
+    public static final Histogram MEMORY_ESTIMATE_RATIO = new Histogram("noteblockbot_memory_estimate_ratio", "The ratio between the allocated and the estimated memory of processed jobs", new double[]{0.25, 0.5, 0.75, 1, 1.5, 2, 3, 5, 10});
+
+    private static final List<Metric<?>> ALL = List.of(TASK_QUEUE_DEPTH, TASK_QUEUE_WAIT, STAGE_DURATION, RATE_LIMIT_REJECTIONS, BYTES, MEMORY_RESERVED, MEMORY_ESTIMATE_RATIO);
+
+    /**
+     * Write all metrics in the Prometheus text format.
+     *
+     * @return The metrics
+     */
+    public static String scrape() {
+        StringBuilder builder = new StringBuilder();
+        for (Metric<?> metric : ALL) metric.write(builder);
+        return builder.toString();
+    }
+
+}
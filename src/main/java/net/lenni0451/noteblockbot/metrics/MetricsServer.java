@@ -0,0 +1,41 @@
+package net.lenni0451.noteblockbot.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import net.lenni0451.noteblockbot.data.Config;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A small HTTP server which exposes the {@link Metrics} for Prometheus on {@code /metrics}.
+ */
+@Slf4j
+public class MetricsServer {
+
+    public static void start() throws IOException {
+        if (!Config.Metrics.enabled) return;
+        HttpServer server = HttpServer.create(new InetSocketAddress(Config.Metrics.bindAddress, Config.Metrics.port), 0);
+        server.createContext("/metrics", exchange -> {
+            try (exchange) {
+                if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                byte[] response = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, response.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response);
+                }
+            } catch (Throwable t) {
+                log.error("Failed to serve metrics", t);
+            }
+        });
+        server.start();
+        log.info("Serving metrics on {}:{}/metrics", Config.Metrics.bindAddress, Config.Metrics.port);
+    }
+
+}
@@ -0,0 +1,75 @@
+package net.lenni0451.noteblockbot.task;
+
+import lombok.extern.slf4j.Slf4j;
+import net.lenni0451.noteblockbot.data.Config;
+import net.lenni0451.noteblockbot.metrics.Metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An admission controller which limits the estimated heap usage of all jobs that are processed at the same time.<br>
+ * Jobs reserve their estimated peak heap usage before they are queued for processing and release it after their output has been uploaded.
+ * If there is not enough memory left the job waits until other jobs have released their reservation.
+ */
+@Slf4j
+public class MemoryBudget {
+
+    private final long budget;
+    private long reserved = 0;
+
+    public MemoryBudget() {
+        this(Config.Memory.processingBudget > 0 ? Config.Memory.processingBudget : Runtime.getRuntime().maxMemory() * 6 / 10);
+    }
+
+    public MemoryBudget(final long budget) {
+        this.budget = budget;
+        log.info("Memory budget for processing: {} MB", budget / 1024 / 1024);
+        Metrics.MEMORY_RESERVED.bind(() -> Map.of(List.of(), this.getReserved()));
+    }
+
+    public long getBudget() {
+        return this.budget;
+    }
+
+    public synchronized long getReserved() {
+        return this.reserved;
+    }
+
+    /**
+     * Reserve memory for a job.<br>
+     * Blocks until enough memory is available. A job is always admitted if nothing else is reserved.
+     *
+     * @param bytes The amount of bytes to reserve
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    public synchronized void acquire(final long bytes) throws InterruptedException {
+        if (bytes <= 0) return;
+        while (this.reserved > 0 && this.reserved + bytes > this.budget) this.wait();
+        this.reserved += bytes;
+    }
+
+    public synchronized void release(final long bytes) {
+        if (bytes <= 0) return;
+        this.reserved -= bytes;
+        this.notifyAll();
+    }
+
+    /**
+     * Get the amount of bytes allocated by the current thread so far.<br>
+     * Used to compare the actual allocations of a job with its estimation.
+     * Work that is done on other threads has to be added to the {@link TaskHandle} of the job.
+     *
+     * @return The allocated bytes or {@code -1} if the JVM does not support it
+     */
+    public static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean sunBean && sunBean.isThreadAllocatedMemorySupported()) {
+            return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+}
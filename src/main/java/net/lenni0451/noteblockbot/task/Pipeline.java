@@ -0,0 +1,232 @@
+package net.lenni0451.noteblockbot.task;
+
+import lombok.extern.slf4j.Slf4j;
+import net.lenni0451.noteblockbot.data.Config;
+import net.lenni0451.noteblockbot.data.TaskJournal;
+import net.lenni0451.noteblockbot.metrics.Metrics;
+import net.lenni0451.noteblockbot.utils.MessageException;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A staged pipeline that separates I/O from CPU heavy work.<br>
+ * Downloads and uploads are executed on a bounded I/O executor, the processing is executed on the {@link TaskQueue}.<br>
+ * Both stages have a limited queue depth. When the I/O queue is full new jobs are rejected,
+ * when the task queue is full downloaded jobs wait until there is space again.
+ * Jobs whose output is already known after downloading (e.g. cached results) skip the processing stage.<br>
+ * Before a job is queued for processing, its estimated memory usage is reserved from the {@link MemoryBudget} until its output has been uploaded.<br>
+ * Submitted jobs are recorded in the {@link TaskJournal} until their output has been uploaded, so they can be resumed after a restart.
+ * Jobs which are already in the journal are rejected, so the same job never runs twice.
+ */
+@Slf4j
+public class Pipeline {
+
+    private final TaskQueue taskQueue;
+    private final MemoryBudget memoryBudget;
+    private final TaskJournal journal;
+    private final ThreadPoolExecutor ioExecutor;
+    private int activeJobs = 0;
+
+    public Pipeline(final TaskQueue taskQueue, final MemoryBudget memoryBudget, final TaskJournal journal) {
+        this(taskQueue, memoryBudget, journal, Config.Pipeline.ioThreads, Config.Pipeline.ioQueueSize);
+    }
+
+    public Pipeline(final TaskQueue taskQueue, final MemoryBudget memoryBudget, final TaskJournal journal, final int ioThreads, final int ioQueueSize) {
+        this.taskQueue = taskQueue;
+        this.memoryBudget = memoryBudget;
+        this.journal = journal;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.ioExecutor = new ThreadPoolExecutor(Math.max(1, ioThreads), Math.max(1, ioThreads), 1, TimeUnit.MINUTES, new ArrayBlockingQueue<>(Math.max(1, ioQueueSize)), r -> {
+            Thread thread = new Thread(r, "Pipeline-IO-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ioExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Submit jobs of a guild to the pipeline.<br>
+     * The jobs are downloaded in order and then processed in the order their download finished.
+     * Jobs which are already in the journal fail with a {@link MessageException}.
+     *
+     * @param guildId       The id of the guild
+     * @param jobs          The jobs to execute
+     * @param finishHandler The handler that is called after all jobs have been finished
+     * @throws RejectedExecutionException If the I/O queue is full or the pipeline has been shut down
+     */
+    public void submit(final long guildId, final List<PipelineJob<?, ?>> jobs, final Runnable finishHandler) throws RejectedExecutionException {
+        if (jobs.isEmpty()) return;
+        if (this.ioExecutor.isShutdown()) throw new RejectedExecutionException("The pipeline has been shut down");
+        AtomicInteger remaining = new AtomicInteger(jobs.size());
+        Runnable jobFinishHandler = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                try {
+                    finishHandler.run();
+                } catch (Throwable t) {
+                    log.error("An error occurred while executing finish handler for guild {}", guildId, t);
+                }
+            }
+        };
+        long[] journalIds = new long[jobs.size()];
+        for (int i = 0; i < jobs.size(); i++) {
+            TaskJournal.Entry entry = jobs.get(i).journalEntry();
+            if (entry != null) journalIds[i] = entry.id() > 0 ? entry.id() : this.journal.add(entry);
+        }
+        synchronized (this) {
+            this.activeJobs += jobs.size();
+        }
+        try {
+            this.ioExecutor.execute(() -> {
+                for (int i = 0; i < jobs.size(); i++) {
+                    long journalId = journalIds[i];
+                    Runnable jobFinished = () -> {
+                        this.journal.remove(journalId);
+                        this.finishJob();
+                        jobFinishHandler.run();
+                    };
+                    if (journalId == 0 && jobs.get(i).journalEntry() != null) {
+                        this.fail(jobs.get(i), new MessageException("The file is already being processed"), jobFinished);
+                    } else {
+                        this.download(guildId, jobs.get(i), jobFinished);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            for (long journalId : journalIds) this.journal.remove(journalId);
+            synchronized (this) {
+                this.activeJobs -= jobs.size();
+                this.notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stop accepting new jobs and wait until all active jobs have been finished.<br>
+     * Jobs which are not finished within the timeout stay in the journal and are resumed on the next start.
+     *
+     * @param timeout The maximum time to wait in milliseconds
+     * @return If all jobs have been finished
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    public boolean shutdown(final long timeout) throws InterruptedException {
+        this.ioExecutor.shutdown();
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            while (this.activeJobs > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    log.warn("{} jobs have not been finished before shutdown and will be resumed on the next start", this.activeJobs);
+                    return false;
+                }
+                this.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    private synchronized void finishJob() {
+        this.activeJobs--;
+        this.notifyAll();
+    }
+
+    private <I, O> void download(final long guildId, final PipelineJob<I, O> job, final Runnable finishHandler) {
+        I input;
+        O cachedOutput;
+        try {
+            job.handle().check();
+            long start = System.nanoTime();
+            input = job.download();
+            Metrics.STAGE_DURATION.observeSince(start, "download");
+            cachedOutput = job.lookup(input);
+        } catch (Throwable t) {
+            this.fail(job, t, finishHandler);
+            return;
+        }
+        if (cachedOutput != null) {
+            this.publish(job, cachedOutput, 0, finishHandler);
+            return;
+        }
+        long memory;
+        try {
+            job.handle().check();
+            memory = job.estimateMemory(input);
+            if (memory > this.memoryBudget.getBudget()) {
+                throw new MessageException("The song needs too much memory to be processed");
+            }
+            this.memoryBudget.acquire(memory);
+        } catch (Throwable t) {
+            this.fail(job, t, finishHandler);
+            return;
+        }
+        try {
+            this.taskQueue.add(guildId, List.of(() -> this.process(job, input, memory, finishHandler)), () -> {}, job.priority());
+        } catch (Throwable t) {
+            this.memoryBudget.release(memory);
+            this.fail(job, t, finishHandler);
+        }
+    }
+
+    private <I, O> void process(final PipelineJob<I, O> job, final I input, final long memory, final Runnable finishHandler) {
+        O output;
+        try {
+            job.handle().check(); //Skip jobs that have been cancelled while waiting in the queue
+            job.handle().start();
+            long start = System.nanoTime();
+            long allocatedBefore = MemoryBudget.getAllocatedBytes();
+            output = job.process(input);
+            Metrics.STAGE_DURATION.observeSince(start, "process");
+            if (memory > 0 && allocatedBefore >= 0) {
+                long allocated = MemoryBudget.getAllocatedBytes() - allocatedBefore + job.handle().getAllocatedBytes();
+                Metrics.MEMORY_ESTIMATE_RATIO.observe((double) allocated / memory);
+                log.debug("Processing allocated {} bytes, estimated {} bytes", allocated, memory);
+            }
+        } catch (Throwable t) {
+            this.memoryBudget.release(memory);
+            this.fail(job, t, finishHandler);
+            return;
+        }
+        try {
+            this.ioExecutor.execute(() -> this.publish(job, output, memory, finishHandler));
+        } catch (RejectedExecutionException e) {
+            //The processing work is already done, don't throw it away just because the I/O queue is full
+            this.publish(job, output, memory, finishHandler);
+        }
+    }
+
+    private <O> void publish(final PipelineJob<?, O> job, final O output, final long memory, final Runnable finishHandler) {
+        //The output is kept in memory and the job stays in the journal until the upload has finished
+        AtomicBoolean finished = new AtomicBoolean(false);
+        Runnable finish = () -> {
+            if (!finished.getAndSet(true)) {
+                this.memoryBudget.release(memory);
+                finishHandler.run();
+            }
+        };
+        try {
+            job.handle().check();
+            long start = System.nanoTime();
+            job.publish(output, () -> {
+                Metrics.STAGE_DURATION.observeSince(start, "upload");
+                finish.run();
+            });
+        } catch (Throwable t) {
+            this.fail(job, t, null);
+            finish.run();
+        }
+    }
+
+    private void fail(final PipelineJob<?, ?> job, final Throwable t, final Runnable finishHandler) {
+        try {
+            if (t instanceof CancellationException) log.debug("Job {} has been cancelled", job);
+            else job.onError(t);
+        } catch (Throwable t2) {
+            log.error("An error occurred while handling a job error", t2);
+        }
+        if (finishHandler != null) finishHandler.run();
+    }
+
+}
@@ -0,0 +1,102 @@
+package net.lenni0451.noteblockbot.task;
+
+import net.lenni0451.noteblockbot.data.TaskJournal;
+
+/**
+ * A job which is executed in multiple stages by the {@link Pipeline}.<br>
+ * Downloading and publishing are executed on the I/O executor, processing is executed on the {@link TaskQueue}.
+ *
+ * @param <I> The type of the downloaded input
+ * @param <O> The type of the processed output
+ */
+public interface PipelineJob<I, O> {
+
+    /**
+     * Download all data required for processing.<br>
+     * This is executed on the I/O executor and must not do any heavy processing.
+     *
+     * @return The downloaded input
+     * @throws Throwable If the download failed
+     */
+    I download() throws Throwable;
+
+    /**
+     * Get the handle used to cancel this job.<br>
+     * The pipeline checks the handle between the stages, long-running processing should check it regularly.
+     *
+     * @return The handle of this job
+     */
+    TaskHandle handle();
+
+    /**
+     * Get the journal entry used to resume this job after a restart.
+     *
+     * @return The journal entry or {@code null} if the job should not be resumed
+     */
+    default TaskJournal.Entry journalEntry() {
+        return null;
+    }
+
+    /**
+     * Get the lane of the {@link TaskQueue} this job is processed in.<br>
+     * Cheap jobs should use a higher priority so they are not stuck behind heavy renders.
+     *
+     * @return The priority of this job
+     */
+    default TaskQueue.Priority priority() {
+        return TaskQueue.Priority.HEAVY;
+    }
+
+    /**
+     * Get the output without processing the input (e.g. because it has been cached).<br>
+     * This is executed on the I/O executor after downloading. If an output is returned,
+     * the job is published directly without reserving memory or waiting for the {@link TaskQueue}.
+     *
+     * @param input The downloaded input
+     * @return The output or {@code null} if the input has to be processed
+     * @throws Throwable If the lookup failed
+     */
+    default O lookup(final I input) throws Throwable {
+        return null;
+    }
+
+    /**
+     * Process the downloaded input.<br>
+     * This is executed on the CPU bound {@link TaskQueue}.
+     *
+     * @param input The downloaded input
+     * @return The processed output
+     * @throws Throwable If the processing failed
+     */
+    O process(final I input) throws Throwable;
+
+    /**
+     * Estimate the peak heap usage of processing the downloaded input.<br>
+     * The estimated amount of memory is reserved from the {@link MemoryBudget} before the job is processed.
+     *
+     * @param input The downloaded input
+     * @return The estimated memory usage in bytes
+     */
+    default long estimateMemory(final I input) {
+        return 0;
+    }
+
+    /**
+     * Publish the processed output (e.g. upload it to Discord and log it into the database).<br>
+     * This is executed on the I/O executor. Uploads are queued asynchronously, so the upload handler has to be called
+     * once the upload has finished or failed. The reserved memory of the job is released and the job is removed from the journal by the upload handler.
+     *
+     * @param output        The processed output
+     * @param uploadHandler The handler that is called after the upload has finished
+     * @throws Throwable If publishing failed
+     */
+    void publish(final O output, final Runnable uploadHandler) throws Throwable;
+
+    /**
+     * Handle an error that occurred in any stage of the job.
+     *
+     * @param t The error
+     */
+    void onError(final Throwable t);
+
+}
@@ -0,0 +1,143 @@
+package net.lenni0451.noteblockbot.task;
+
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.interactions.InteractionHook;
+import net.dv8tion.jda.api.requests.RestAction;
+import net.lenni0451.noteblockbot.data.Config;
+
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Shows the progress of a running job by editing a message.<br>
+ * The status is polled at a fixed interval and only sent if it changed, so any amount of progress updates results in at most one edit per interval.
+ * A job never has more than one edit waiting in the rate limit bucket of JDA. Edits which could not be sent before the next interval are dropped
+ * and all waiting edits are cancelled when the updater is stopped, so progress edits never delay the upload of the result.
+ */
+@Slf4j
+public class ProgressUpdater {
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ProgressUpdater");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Supplier<String> status;
+    private final Function<String, RestAction<?>> edit;
+    private final Runnable cleanup;
+    private final long intervalMillis;
+    private final ScheduledFuture<?> task;
+    private CompletableFuture<?> pending;
+    private String lastStatus;
+    private boolean stopped = false;
+
+    private ProgressUpdater(final Supplier<String> status, final Function<String, RestAction<?>> edit, final Runnable cleanup) {
+        this.status = status;
+        this.edit = edit;
+        this.cleanup = cleanup;
+        this.intervalMillis = Config.Progress.updateInterval * 1000L;
+        if (this.intervalMillis > 0) {
+            this.task = SCHEDULER.scheduleWithFixedDelay(this::update, this.intervalMillis, this.intervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.task = null;
+        }
+    }
+
+    /**
+     * Edit the original reply of an interaction.
+     *
+     * @param hook   The interaction hook
+     * @param status The supplier of the current status text
+     * @return The started updater
+     */
+    public static ProgressUpdater forHook(final InteractionHook hook, final Supplier<String> status) {
+        return new ProgressUpdater(status, hook::editOriginal, null);
+    }
+
+    /**
+     * Reply to a message with a status message and edit it.<br>
+     * The status message is only sent after the first interval and deleted when the updater is stopped.
+     *
+     * @param message The message to reply to
+     * @param status  The supplier of the current status text
+     * @return The started updater
+     */
+    public static ProgressUpdater forReply(final Message message, final Supplier<String> status) {
+        StatusMessage statusMessage = new StatusMessage(message);
+        return new ProgressUpdater(status, statusMessage::update, statusMessage::delete);
+    }
+
+    /**
+     * Stop updating the message and cancel the edit which is still waiting to be sent.<br>
+     * Has to be called before the result of the job is published.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (this.stopped) return;
+            this.stopped = true;
+            if (this.task != null) this.task.cancel(false);
+            if (this.pending != null) this.pending.cancel(false);
+        }
+        if (this.cleanup != null) this.cleanup.run();
+    }
+
+    private synchronized void update() {
+        if (this.stopped || this.pending != null) return; //The previous edit has not been sent yet
+        try {
+            String status = this.status.get();
+            if (status == null || status.equals(this.lastStatus)) return;
+            this.lastStatus = status;
+            CompletableFuture<?> future = this.edit.apply(status)
+                    .setCheck(this::isActive)
+                    .deadline(System.currentTimeMillis() + this.intervalMillis)
+                    .submit();
+            this.pending = future;
+            future.whenComplete((result, t) -> this.finishEdit(future));
+        } catch (Throwable t) {
+            log.warn("Failed to update the progress message", t);
+        }
+    }
+
+    private synchronized boolean isActive() {
+        return !this.stopped;
+    }
+
+    private synchronized void finishEdit(final CompletableFuture<?> future) {
+        if (this.pending == future) this.pending = null;
+    }
+
+
+    /**
+     * A status message replying to the message of the user.<br>
+     * The first update sends the message, the following updates edit it.
+     */
+    private static class StatusMessage {
+        private final Message message;
+        private Message statusMessage;
+        private boolean deleted = false;
+
+        private StatusMessage(final Message message) {
+            this.message = message;
+        }
+
+        private synchronized RestAction<?> update(final String status) {
+            if (this.statusMessage != null) return this.statusMessage.editMessage(status);
+            return this.message.reply(status).mentionRepliedUser(false).map(this::sent);
+        }
+
+        private synchronized Message sent(final Message statusMessage) {
+            if (this.deleted) statusMessage.delete().queue(); //The job finished while the message was sent
+            else this.statusMessage = statusMessage;
+            return statusMessage;
+        }
+
+        private synchronized void delete() {
+            this.deleted = true;
+            if (this.statusMessage != null) this.statusMessage.delete().queue();
+        }
+    }
+
+}
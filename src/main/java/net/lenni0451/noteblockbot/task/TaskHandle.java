@@ -0,0 +1,111 @@
+package net.lenni0451.noteblockbot.task;
+
+import net.lenni0451.noteblockbot.utils.MessageException;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A handle to cooperatively cancel a job.<br>
+ * Jobs are cancelled when the result can't be delivered anymore (e.g. the message was deleted or the interaction expired)
+ * or when their processing took longer than the allowed timeout.<br>
+ * Long-running work has to call {@link #check()} regularly to abort as soon as possible.
+ */
+public class TaskHandle {
+
+    private final long timeoutMillis;
+    private final BooleanSupplier expired;
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private volatile boolean cancelled = false;
+    private volatile boolean started = false;
+    private volatile long deadlineNanos;
+    private volatile float progress = 0;
+
+    /**
+     * @param timeoutSeconds The maximum processing time in seconds or {@code 0} for no timeout
+     */
+    public TaskHandle(final int timeoutSeconds) {
+        this(timeoutSeconds, () -> false);
+    }
+
+    /**
+     * @param timeoutSeconds The maximum processing time in seconds or {@code 0} for no timeout
+     * @param expired        A condition which cancels the job when it becomes true
+     */
+    public TaskHandle(final int timeoutSeconds, final BooleanSupplier expired) {
+        this.timeoutMillis = timeoutSeconds * 1000L;
+        this.expired = expired;
+    }
+
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        if (!this.cancelled && this.expired.getAsBoolean()) this.cancelled = true;
+        return this.cancelled;
+    }
+
+    /**
+     * Start the processing timeout.<br>
+     * Called by the {@link Pipeline} when the job is taken from the queue.
+     */
+    void start() {
+        this.deadlineNanos = System.nanoTime() + this.timeoutMillis * 1_000_000;
+        this.started = true;
+    }
+
+    /**
+     * Get the processing time which is left before the job times out.
+     *
+     * @return The remaining time in milliseconds or {@link Long#MAX_VALUE} if there is no timeout
+     */
+    public long getRemainingMillis() {
+        if (this.timeoutMillis <= 0 || !this.started) return Long.MAX_VALUE;
+        return (this.deadlineNanos - System.nanoTime()) / 1_000_000;
+    }
+
+    public float getProgress() {
+        return this.progress;
+    }
+
+    /**
+     * Set the progress of the running work.<br>
+     * This only stores the value, it is shown by a {@link ProgressUpdater} polling it.
+     *
+     * @param progress The progress between 0 and 1
+     */
+    public void setProgress(final float progress) {
+        this.progress = Math.max(0, Math.min(1, progress));
+    }
+
+    /**
+     * Add the bytes allocated for the job on other threads than the one processing it.<br>
+     * The {@link Pipeline} adds them to the allocations of the processing thread when comparing them with the estimation.
+     *
+     * @param bytes The allocated bytes
+     */
+    public void addAllocatedBytes(final long bytes) {
+        this.allocatedBytes.addAndGet(bytes);
+    }
+
+    long getAllocatedBytes() {
+        return this.allocatedBytes.get();
+    }
+
+    /**
+     * Check if the job should continue.
+     *
+     * @throws CancellationException If the job has been cancelled
+     * @throws MessageException      If the processing took longer than the timeout
+     */
+    public void check() {
+        if (this.isCancelled()) throw new CancellationException();
+        if (this.timeoutMillis > 0 && this.started && System.nanoTime() - this.deadlineNanos > 0) {
+            this.cancelled = true;
+            throw new MessageException("Processing took longer than " + this.timeoutMillis / 1000 + " seconds and was aborted");
+        }
+    }
+
+}
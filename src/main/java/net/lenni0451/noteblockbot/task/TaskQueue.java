@@ -1,85 +1,118 @@
 package net.lenni0451.noteblockbot.task;
 
 import lombok.extern.slf4j.Slf4j;
+import net.lenni0451.noteblockbot.data.Config;
+import net.lenni0451.noteblockbot.metrics.Metrics;
 
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A task queue that executes tasks asynchronously on a by-guild basis.<br>
  * It is used to fairly spread the load of tasks between all guilds and to prevent that one guild can block the execution of tasks for other guilds.<br>
+ * Tasks are executed by a pool of worker threads. Every guild can only occupy a limited amount of workers at the same time.<br>
+ * Tasks are added with a {@link Priority} and every priority has its own lane. The lanes share the workers by their weight,
+ * so cheap tasks are not stuck behind heavy ones while heavy tasks still get their share of the workers.
+ * Within a lane guilds are served round-robin and tasks of the same guild are always started in the order they were added.
+ * The tasks of one batch are executed one after another, so they also finish in the order they were added.<br>
+ * Background tasks have no weight and are only started when no other task can be started.<br>
+ * The amount of waiting tasks is limited. Adding tasks to a full queue blocks until enough tasks have been started.<br>
  * Proper rate limiting is still required for tasks that use a lot of resources/have a long execution time.
  */
 @Slf4j
 public class TaskQueue {
 
-    private final Map<Long, List<GuildTasks>> tasks = new HashMap<>();
-    private final BlockingQueue<Long> guildQueue = new LinkedBlockingQueue<>();
+    private final Lane[] lanes = new Lane[Priority.values().length];
+    private final Map<Long, Integer> runningTasks = new HashMap<>();
+    private final int maxConcurrentTasksPerGuild;
+    private final int maxQueuedTasks;
+    private int queuedTasks = 0;
 
     public TaskQueue() {
-        Thread thread = new Thread(this::runTasks, "TaskQueue");
-        thread.setDaemon(true);
-        thread.start();
+        this(
+                Config.TaskQueue.workerThreads <= 0 ? Runtime.getRuntime().availableProcessors() : Config.TaskQueue.workerThreads,
+                Config.TaskQueue.maxConcurrentTasksPerGuild,
+                Config.TaskQueue.maxQueuedTasks
+        );
     }
 
-    public void add(final long guildId, final List<Runnable> tasks, final Runnable finishHandler) {
+    public TaskQueue(final int workerThreads, final int maxConcurrentTasksPerGuild, final int maxQueuedTasks) {
+        this.maxConcurrentTasksPerGuild = Math.max(1, maxConcurrentTasksPerGuild);
+        this.maxQueuedTasks = Math.max(1, maxQueuedTasks);
+        for (Priority priority : Priority.values()) this.lanes[priority.ordinal()] = new Lane(priority);
+        for (int i = 0; i < Math.max(1, workerThreads); i++) {
+            Thread thread = new Thread(this::runTasks, "TaskQueue-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Metrics.TASK_QUEUE_DEPTH.bind(this::getQueueDepths);
+    }
+
+    /**
+     * Add tasks for a guild to the queue with the {@link Priority#HEAVY} priority.<br>
+     * If the queue is full this method blocks until enough tasks have been started.
+     *
+     * @param guildId       The id of the guild
+     * @param tasks         The tasks to execute one after another
+     * @param finishHandler The handler that is called after all tasks have been executed
+     * @throws InterruptedException If the thread was interrupted while waiting for space in the queue
+     */
+    public void add(final long guildId, final List<Runnable> tasks, final Runnable finishHandler) throws InterruptedException {
+        this.add(guildId, tasks, finishHandler, Priority.HEAVY);
+    }
+
+    /**
+     * Add tasks for a guild to the queue.<br>
+     * If the queue is full this method blocks until enough tasks have been started.
+     *
+     * @param guildId       The id of the guild
+     * @param tasks         The tasks to execute one after another
+     * @param finishHandler The handler that is called after all tasks have been executed
+     * @param priority      The lane the tasks are added to
+     * @throws InterruptedException If the thread was interrupted while waiting for space in the queue
+     */
+    public void add(final long guildId, final List<Runnable> tasks, final Runnable finishHandler, final Priority priority) throws InterruptedException {
         if (tasks.isEmpty()) return;
-        GuildTasks guildTasks = new GuildTasks(guildId, new ArrayDeque<>(tasks), finishHandler);
-        synchronized (this.tasks) {
-            this.tasks.computeIfAbsent(guildId, k -> new ArrayList<>()).add(guildTasks);
+        GuildTasks guildTasks = new GuildTasks(guildId, priority, new ArrayDeque<>(tasks), new AtomicInteger(tasks.size()), new AtomicBoolean(), finishHandler, System.nanoTime());
+        synchronized (this.lanes) {
+            //Always allow adding tasks to an empty queue, even if there are more tasks than the limit
+            while (this.queuedTasks > 0 && this.queuedTasks + tasks.size() > this.maxQueuedTasks) this.lanes.wait();
+            this.queuedTasks += tasks.size();
+            this.lanes[priority.ordinal()].add(guildTasks);
+            this.lanes.notifyAll();
         }
-        this.guildQueue.add(guildId);
     }
 
     private void runTasks() {
         while (!Thread.currentThread().isInterrupted()) {
             try {
-                Set<Long> guildIds = new LinkedHashSet<>();
-                guildIds.add(this.guildQueue.take());
-                this.guildQueue.drainTo(guildIds);
-
-                Iterator<Long> it = guildIds.iterator();
-                while (it.hasNext()) {
-                    Long guildId = it.next();
-                    GuildTasks guildTasks;
-                    synchronized (this.tasks) {
-                        List<GuildTasks> guildTasksList = this.tasks.get(guildId);
-                        if (guildTasksList == null) {
-                            it.remove();
-                            continue;
-                        }
-                        if (guildTasksList.isEmpty()) {
-                            this.tasks.remove(guildId);
-                            it.remove();
-                            continue;
-                        }
-                        guildTasks = guildTasksList.get(0);
-                        if (guildTasks.tasks.size() <= 1) {
-                            guildTasksList.remove(0);
-                            if (guildTasksList.isEmpty()) {
-                                this.tasks.remove(guildId);
-                                it.remove();
-                            }
-                        }
-                    }
+                GuildTasks guildTasks;
+                Runnable nextTask;
+                synchronized (this.lanes) {
+                    while ((guildTasks = this.nextGuildTasks()) == null) this.lanes.wait();
+                    nextTask = guildTasks.tasks.poll();
+                    guildTasks.running.set(true);
+                    this.queuedTasks--;
+                    this.lanes.notifyAll();
+                    if (guildTasks.tasks.isEmpty()) this.lanes[guildTasks.priority.ordinal()].remove(guildTasks);
+                }
+                Metrics.TASK_QUEUE_WAIT.observeSince(guildTasks.addedNanos, guildTasks.priority.getName());
 
-                    Runnable nextTask = guildTasks.tasks.poll();
-                    if (nextTask == null) continue;
+                try {
+                    nextTask.run();
+                } catch (Throwable t) {
+                    log.error("An error occurred while executing task for guild {}", guildTasks.guildId, t);
+                } finally {
+                    this.finishTask(guildTasks);
+                }
+                if (guildTasks.remaining.decrementAndGet() == 0) {
                     try {
-                        nextTask.run();
+                        guildTasks.finishHandler.run();
                     } catch (Throwable t) {
-                        log.error("An error occurred while executing task for guild {}", guildTasks.guildId, t);
-                    }
-                    if (guildTasks.tasks.isEmpty()) {
-                        try {
-                            guildTasks.finishHandler.run();
-                        } catch (Throwable t) {
-                            log.error("An error occurred while executing finish handler for guild {}", guildTasks.guildId, t);
-                        }
+                        log.error("An error occurred while executing finish handler for guild {}", guildTasks.guildId, t);
                     }
                 }
-                this.guildQueue.addAll(guildIds);
             } catch (InterruptedException e) {
                 break;
             } catch (Throwable t) {
@@ -88,8 +121,168 @@ public class TaskQueue {
         }
     }
 
+    /**
+     * Get the tasks which should be executed next and mark their guild as running.<br>
+     * The lanes are chosen by smooth weighted round-robin: Every lane which can start a task gains its weight as credit,
+     * the lane with the most credit is chosen and pays the total weight of all candidates.
+     * This spreads the lanes evenly by their weight and every lane with tasks is eventually chosen.<br>
+     * Has to be called while holding the lock on {@link #lanes}.
+     *
+     * @return The tasks or {@code null} if no task can be executed right now
+     */
+    private GuildTasks nextGuildTasks() {
+        Lane chosen = null;
+        int totalWeight = 0;
+        for (Lane lane : this.lanes) {
+            if (lane.priority.weight <= 0 || !lane.canStart()) continue;
+            lane.credit += lane.priority.weight;
+            totalWeight += lane.priority.weight;
+            if (chosen == null || lane.credit > chosen.credit) chosen = lane;
+        }
+        if (chosen != null) {
+            chosen.credit -= totalWeight;
+        } else {
+            for (Lane lane : this.lanes) {
+                if (lane.priority.weight <= 0 && lane.canStart()) {
+                    chosen = lane;
+                    break;
+                }
+            }
+            if (chosen == null) return null;
+        }
+
+        GuildTasks guildTasks = chosen.poll();
+        this.runningTasks.merge(guildTasks.guildId, 1, Integer::sum);
+        return guildTasks;
+    }
+
+    private boolean canStart(final long guildId) {
+        return this.runningTasks.getOrDefault(guildId, 0) < this.maxConcurrentTasksPerGuild;
+    }
+
+    private Map<List<String>, Integer> getQueueDepths() {
+        Map<List<String>, Integer> depths = new HashMap<>();
+        synchronized (this.lanes) {
+            for (Lane lane : this.lanes) {
+                for (Map.Entry<Long, Deque<GuildTasks>> entry : lane.pending.entrySet()) {
+                    int depth = 0;
+                    for (GuildTasks guildTasks : entry.getValue()) depth += guildTasks.tasks.size();
+                    depths.put(List.of(String.valueOf(entry.getKey()), lane.priority.getName()), depth);
+                }
+            }
+        }
+        return depths;
+    }
+
+    private void finishTask(final GuildTasks guildTasks) {
+        synchronized (this.lanes) {
+            guildTasks.running.set(false);
+            this.runningTasks.computeIfPresent(guildTasks.guildId, (id, running) -> running <= 1 ? null : running - 1);
+            this.lanes.notifyAll();
+        }
+    }
+
 
-    private record GuildTasks(long guildId, Queue<Runnable> tasks, Runnable finishHandler) {
+    /**
+     * The priority of tasks in the queue.<br>
+     * The weight is the share of the workers the lane gets when all lanes have waiting tasks.
+     */
+    public enum Priority {
+        /**
+         * Tasks a user is actively waiting for, like previews.
+         */
+        INTERACTIVE(6),
+        /**
+         * Cheap conversions which usually finish within a second.
+         */
+        LIGHT(3),
+        /**
+         * Full renders which can take minutes.
+         */
+        HEAVY(1),
+        /**
+         * Tasks nobody is waiting for. They are only started when no other task can be started.
+         */
+        BACKGROUND(0);
+
+        private final int weight;
+
+        Priority(final int weight) {
+            this.weight = weight;
+        }
+
+        public String getName() {
+            return this.name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private record GuildTasks(long guildId, Priority priority, Queue<Runnable> tasks, AtomicInteger remaining, AtomicBoolean running, Runnable finishHandler, long addedNanos) {
+    }
+
+    /**
+     * The waiting tasks of one priority.<br>
+     * Guilds are served round-robin, a guild is skipped while it has reached its concurrent task limit
+     * or while the previous task of its oldest batch is still running.
+     */
+    private class Lane {
+        private final Priority priority;
+        private final Map<Long, Deque<GuildTasks>> pending = new HashMap<>();
+        private final Deque<Long> guildQueue = new ArrayDeque<>();
+        private int credit = 0;
+
+        private Lane(final Priority priority) {
+            this.priority = priority;
+        }
+
+        private void add(final GuildTasks guildTasks) {
+            Deque<GuildTasks> guildPending = this.pending.computeIfAbsent(guildTasks.guildId, k -> new ArrayDeque<>());
+            if (guildPending.isEmpty()) this.guildQueue.add(guildTasks.guildId);
+            guildPending.add(guildTasks);
+        }
+
+        private boolean canStart() {
+            for (Long guildId : this.guildQueue) {
+                if (this.canStart(guildId)) return true;
+            }
+            return false;
+        }
+
+        private boolean canStart(final Long guildId) {
+            return TaskQueue.this.canStart(guildId) && !this.pending.get(guildId).peek().running.get();
+        }
+
+        /**
+         * Get the tasks of the next guild which is allowed to execute a task.<br>
+         * The guild is moved to the end of the queue to give all other guilds a chance to execute their tasks first.
+         *
+         * @return The tasks of the next guild or {@code null} if no guild can execute a task right now
+         */
+        private GuildTasks poll() {
+            for (int i = 0; i < this.guildQueue.size(); i++) {
+                Long guildId = this.guildQueue.poll();
+                Deque<GuildTasks> guildPending = this.pending.get(guildId);
+                if (!this.canStart(guildId)) {
+                    this.guildQueue.add(guildId);
+                    continue;
+                }
+
+                GuildTasks guildTasks = guildPending.peek();
+                if (guildPending.size() > 1 || guildTasks.tasks.size() > 1) this.guildQueue.add(guildId);
+                return guildTasks;
+            }
+            return null;
+        }
+
+        /**
+         * Remove tasks which have all been started.
+         *
+         * @param guildTasks The started tasks
+         */
+        private void remove(final GuildTasks guildTasks) {
+            Deque<GuildTasks> guildPending = this.pending.get(guildTasks.guildId);
+            guildPending.remove(guildTasks);
+            if (guildPending.isEmpty()) this.pending.remove(guildTasks.guildId);
+        }
     }
 
 }
@@ -0,0 +1,52 @@
+package net.lenni0451.noteblockbot.utils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Supplier;
+
+/**
+ * A pool of reusable buffers.<br>
+ * Renders allocate large buffers which quickly fill the young generation when several songs are rendered back to back.
+ * Reusing them keeps them in the old generation and avoids the collections.<br>
+ * Only a limited amount of buffers is kept, additional returned buffers are left to the garbage collector.
+ *
+ * @param <T> The type of the buffers
+ */
+public class BufferPool<T> {
+
+    private final Supplier<T> factory;
+    private final int maxPooled;
+    private final Deque<T> pool = new ArrayDeque<>();
+
+    public BufferPool(final Supplier<T> factory, final int maxPooled) {
+        this.factory = factory;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Take a buffer from the pool or create a new one if the pool is empty.<br>
+     * The content of the buffer is undefined.
+     *
+     * @return The buffer
+     */
+    public T take() {
+        T buffer;
+        synchronized (this.pool) {
+            buffer = this.pool.poll();
+        }
+        return buffer != null ? buffer : this.factory.get();
+    }
+
+    /**
+     * Return a buffer to the pool.<br>
+     * The buffer must not be used anymore after it has been returned.
+     *
+     * @param buffer The buffer
+     */
+    public void release(final T buffer) {
+        synchronized (this.pool) {
+            if (this.pool.size() < this.maxPooled) this.pool.push(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+package net.lenni0451.noteblockbot.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An output stream which writes into pooled fixed size chunks.<br>
+ * Unlike a {@link java.io.ByteArrayOutputStream} the data is never copied while the output grows.
+ * The chunks are returned to the pool when the output is closed, so it must not be used afterwards.
+ */
+public class ChunkedOutput extends OutputStream {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+    private static final BufferPool<byte[]> CHUNKS = new BufferPool<>(() -> new byte[CHUNK_SIZE], 256);
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private byte[] header = new byte[0];
+    private int chunkPosition = CHUNK_SIZE;
+    private long size = 0;
+    private boolean closed = false;
+
+    @Override
+    public void write(final int b) {
+        if (this.chunkPosition == CHUNK_SIZE) this.nextChunk();
+        this.chunks.get(this.chunks.size() - 1)[this.chunkPosition++] = (byte) b;
+        this.size++;
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) {
+        while (len > 0) {
+            if (this.chunkPosition == CHUNK_SIZE) this.nextChunk();
+            int length = Math.min(len, CHUNK_SIZE - this.chunkPosition);
+            System.arraycopy(b, off, this.chunks.get(this.chunks.size() - 1), this.chunkPosition, length);
+            this.chunkPosition += length;
+            this.size += length;
+            off += length;
+            len -= length;
+        }
+    }
+
+    /**
+     * Set a header which is put in front of the written data.<br>
+     * Used for formats whose header is only known after all data has been written.
+     *
+     * @param header The header
+     * @param length The length of the header
+     */
+    public void setHeader(final byte[] header, final int length) {
+        this.header = Arrays.copyOf(header, length);
+    }
+
+    /**
+     * @return The size of the header and the written data
+     */
+    public long size() {
+        return this.header.length + this.size;
+    }
+
+    /**
+     * Copy the header and the data into a new array.
+     *
+     * @return The data
+     */
+    public byte[] toByteArray() {
+        this.ensureOpen();
+        byte[] data = new byte[Math.toIntExact(this.size())];
+        System.arraycopy(this.header, 0, data, 0, this.header.length);
+        int position = this.header.length;
+        for (byte[] chunk : this.chunks) {
+            int length = Math.min(CHUNK_SIZE, data.length - position);
+            System.arraycopy(chunk, 0, data, position, length);
+            position += length;
+        }
+        return data;
+    }
+
+    /**
+     * Read the header and the data directly from the chunks without copying it.<br>
+     * The output must not be closed before the stream has been read.
+     *
+     * @return A stream of the data
+     */
+    public InputStream toInputStream() {
+        this.ensureOpen();
+        return new SequenceInputStream(new ByteArrayInputStream(this.header), new InputStream() {
+            private long position = 0;
+
+            @Override
+            public int read() {
+                if (this.position >= ChunkedOutput.this.size) return -1;
+                byte b = ChunkedOutput.this.chunks.get((int) (this.position / CHUNK_SIZE))[(int) (this.position % CHUNK_SIZE)];
+                this.position++;
+                return b & 0xFF;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) {
+                if (len == 0) return 0;
+                if (this.position >= ChunkedOutput.this.size) return -1;
+                int chunkOffset = (int) (this.position % CHUNK_SIZE);
+                int length = (int) Math.min(Math.min(len, CHUNK_SIZE - chunkOffset), ChunkedOutput.this.size - this.position);
+                System.arraycopy(ChunkedOutput.this.chunks.get((int) (this.position / CHUNK_SIZE)), chunkOffset, b, off, length);
+                this.position += length;
+                return length;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, ChunkedOutput.this.size - this.position);
+            }
+        });
+    }
+
+    /**
+     * Return all chunks to the pool.
+     */
+    @Override
+    public void close() {
+        if (this.closed) return;
+        this.closed = true;
+        for (byte[] chunk : this.chunks) CHUNKS.release(chunk);
+        this.chunks.clear();
+    }
+
+    private void nextChunk() {
+        this.ensureOpen();
+        this.chunks.add(CHUNKS.take());
+        this.chunkPosition = 0;
+    }
+
+    private void ensureOpen() {
+        if (this.closed) throw new IllegalStateException("The output has already been closed");
+    }
+
+}
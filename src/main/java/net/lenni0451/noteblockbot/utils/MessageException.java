@@ -0,0 +1,18 @@
+package net.lenni0451.noteblockbot.utils;
+
+/**
+ * An exception whose message is shown to the user.<br>
+ * No stack trace is collected since it is only used to abort processing.
+ */
+public class MessageException extends RuntimeException {
+
+    public MessageException(final String message) {
+        super(message);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+
+}
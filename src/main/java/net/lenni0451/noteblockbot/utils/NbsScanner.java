@@ -0,0 +1,112 @@
+package net.lenni0451.noteblockbot.utils;
+
+import net.lenni0451.noteblockbot.data.Config;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A fast scanner for NBS files which only reads the header and walks the note chunk without creating any note objects.<br>
+ * It is used to reject songs that exceed the configured limits before they are parsed and rendered.
+ */
+public class NbsScanner {
+
+    /**
+     * Scan the header and note chunk of a NBS file.
+     *
+     * @param data The raw data of the NBS file
+     * @return The scanned song information
+     * @throws MessageException If the data is not a valid NBS file
+     */
+    public static SongStats scan(final byte[] data) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            int version = 0;
+            int length = buffer.getShort() & 0xFFFF;
+            if (length == 0) {
+                version = buffer.get() & 0xFF;
+                buffer.get(); //Vanilla instrument count
+                if (version >= 3) length = buffer.getShort() & 0xFFFF;
+            }
+            buffer.getShort(); //Layer count
+            for (int i = 0; i < 4; i++) skipString(buffer); //Title, author, original author, description
+            float tempo = (buffer.getShort() & 0xFFFF) / 100F;
+            buffer.position(buffer.position() + 3 + 4 * 5); //Auto saving, auto saving duration, time signature, stats
+            skipString(buffer); //Source file name
+            if (version >= 4) buffer.position(buffer.position() + 4); //Loop, max loop count, loop start tick
+
+            int tick = -1;
+            int noteCount = 0;
+            int noteSize = version >= 4 ? 6 : 2;
+            while (true) {
+                int tickJump = buffer.getShort() & 0xFFFF;
+                if (tickJump == 0) break;
+                tick += tickJump;
+                while (true) {
+                    int layerJump = buffer.getShort() & 0xFFFF;
+                    if (layerJump == 0) break;
+                    buffer.position(buffer.position() + noteSize);
+                    noteCount++;
+                }
+            }
+            return new SongStats(version, Math.max(length, tick + 1), tempo, noteCount);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new MessageException("The file is not a valid NBS file");
+        }
+    }
+
+    /**
+     * Scan a NBS file and check it against the configured song limits.
+     *
+     * @param data The raw data of the NBS file
+     * @return The scanned song information
+     * @throws MessageException If the song exceeds the limits or is not a valid NBS file
+     */
+    public static SongStats validate(final byte[] data) {
+        SongStats stats = scan(data);
+        if (stats.lengthInSeconds() > Config.SongLimits.maxNbsLength) {
+            throw new MessageException("The song is too long (" + (int) stats.lengthInSeconds() + "s, Max: " + Config.SongLimits.maxNbsLength + "s)");
+        }
+        if (stats.noteCount() > Config.SongLimits.maxNbsNotes) {
+            throw new MessageException("The song has too many notes (" + stats.noteCount() + ", Max: " + Config.SongLimits.maxNbsNotes + ")");
+        }
+        return stats;
+    }
+
+    private static void skipString(final ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) throw new IllegalArgumentException("Negative string length");
+        buffer.position(buffer.position() + length);
+    }
+
+
+    /**
+     * Information about a NBS file read by the {@link NbsScanner}.
+     *
+     * @param version     The NBS version
+     * @param lengthTicks The length of the song in ticks
+     * @param tempo       The tempo of the song in ticks per second
+     * @param noteCount   The amount of notes in the song
+     */
+    public record SongStats(int version, int lengthTicks, float tempo, int noteCount) {
+        public float lengthInSeconds() {
+            return this.lengthTicks / (this.tempo <= 0 ? 10F : this.tempo);
+        }
+
+        /**
+         * Approximate the information of the first seconds of the song.<br>
+         * The notes are assumed to be evenly distributed over the song.
+         *
+         * @param seconds The maximum length in seconds
+         * @return The limited song information
+         */
+        public SongStats limit(final float seconds) {
+            float length = this.lengthInSeconds();
+            if (length <= seconds) return this;
+            float fraction = seconds / length;
+            return new SongStats(this.version, (int) Math.ceil(this.lengthTicks * fraction), this.tempo, (int) Math.ceil(this.noteCount * fraction));
+        }
+    }
+
+}
@@ -1,32 +1,93 @@
 package net.lenni0451.noteblockbot.utils;
 
-import net.lenni0451.commons.httpclient.HttpClient;
-import net.lenni0451.commons.httpclient.HttpResponse;
-import net.lenni0451.commons.httpclient.constants.HttpHeaders;
-import net.lenni0451.commons.httpclient.requests.HttpRequest;
-import net.lenni0451.commons.httpclient.requests.impl.GetRequest;
+import net.lenni0451.noteblockbot.metrics.Metrics;
 
 import java.io.IOException;
-import java.util.function.Consumer;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
 
 public class NetUtils {
 
-    private static final HttpClient CLIENT = new HttpClient()
-            .setHeader(HttpHeaders.USER_AGENT, "NoteBlockBot");
+    /**
+     * The client keeps connections alive and reuses them for following downloads from the same host.
+     */
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
 
-    public static HttpResponse get(final String url) throws IOException {
-        return get(request -> {}, url);
+    /**
+     * Download the content of a URL.<br>
+     * The response is streamed and the download is aborted as soon as it exceeds the maximum size,
+     * so a wrong declared size can't make the bot allocate more memory than allowed.
+     *
+     * @param url     The URL to download
+     * @param maxSize The maximum size of the content in bytes
+     * @return The downloaded data
+     * @throws IOException      If the download failed
+     * @throws MessageException If the content is larger than the maximum size
+     */
+    public static byte[] getBytes(final String url, final int maxSize) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .header("User-Agent", "NoteBlockBot")
+                .timeout(REQUEST_TIMEOUT)
+                .GET()
+                .build();
+        HttpResponse<InputStream> response;
+        try {
+            response = CLIENT.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("The download has been interrupted", e);
+        }
+        try (InputStream is = response.body()) {
+            if (response.statusCode() / 100 != 2) {
+                throw new IOException("Failed to get: " + response.statusCode());
+            }
+            long contentLength = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+            if (contentLength > maxSize) throw tooLarge(maxSize);
+            byte[] data = contentLength >= 0 ? readKnownLength(is, (int) contentLength, maxSize) : readUnknownLength(is, maxSize);
+            Metrics.BYTES.inc(data.length, "in");
+            return data;
+        }
+    }
+
+    /**
+     * Read the content directly into an array of the declared size, so no intermediate buffers are needed.
+     */
+    private static byte[] readKnownLength(final InputStream is, final int contentLength, final int maxSize) throws IOException {
+        byte[] data = new byte[contentLength];
+        int length = is.readNBytes(data, 0, contentLength);
+        if (length < contentLength) throw new IOException("The download ended after " + length + " of " + contentLength + " bytes");
+        if (is.read() != -1) throw tooLarge(maxSize); //The server sent more than it declared
+        return data;
     }
 
-    public static HttpResponse get(final Consumer<HttpRequest> requestModifier, final String url) throws IOException {
-        GetRequest request = CLIENT.get(url);
-        requestModifier.accept(request);
-        HttpResponse response = request.execute();
-        if (response.getStatusCode() / 100 != 2) {
-            throw new IOException("Failed to get: " + response.getStatusCode() + " - " + response.getStatusMessage() + ": " + response.getContentAsString());
-        } else {
-            return response;
+    private static byte[] readUnknownLength(final InputStream is, final int maxSize) throws IOException {
+        byte[] buffer = new byte[Math.min(INITIAL_BUFFER_SIZE, maxSize + 1)];
+        int length = 0;
+        while (true) {
+            if (length == buffer.length) {
+                if (length > maxSize) throw tooLarge(maxSize);
+                buffer = Arrays.copyOf(buffer, (int) Math.min((long) maxSize + 1, (long) buffer.length * 2));
+            }
+            int read = is.read(buffer, length, buffer.length - length);
+            if (read == -1) break;
+            length += read;
         }
+        if (length > maxSize) throw tooLarge(maxSize);
+        return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+    }
+
+    private static MessageException tooLarge(final int maxSize) {
+        return new MessageException("The file is too large (Max: " + maxSize + " bytes)");
     }
 
 }
@@ -0,0 +1,70 @@
+package net.lenni0451.noteblockbot.export;
+
+import net.lenni0451.noteblockbot.task.TaskHandle;
+import net.raphimc.audiomixer.util.FloatAudioFormat;
+import net.raphimc.noteblocklib.NoteBlockLib;
+import net.raphimc.noteblocklib.format.SongFormat;
+import net.raphimc.noteblocklib.format.nbs.model.NbsSong;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentRendererTest {
+
+    //10 t/s at 24 kHz is exactly 2400 frames per tick, so the segment offsets don't need to be rounded
+    private static final FloatAudioFormat FORMAT = new FloatAudioFormat(24000, 1);
+    private static final float TOLERANCE = 1E-4F;
+
+    private static SoundBank soundBank;
+    private static byte[] songData;
+
+    @BeforeAll
+    static void setup() throws Exception {
+        soundBank = new SoundBank(Files.createTempDirectory("sounds").toFile());
+        try (InputStream is = SegmentRendererTest.class.getResourceAsStream("/songs/medium.nbs")) {
+            assertNotNull(is);
+            songData = is.readAllBytes();
+        }
+    }
+
+    @Test
+    void segmentsMatchSingleRender() throws Exception {
+        float[] single = render(Float.MAX_VALUE, 1);
+        for (float segmentLength : new float[]{1, 3, 7}) {
+            for (int parallelSegments : new int[]{1, 4}) {
+                float[] segmented = render(segmentLength, parallelSegments);
+                float maxDifference = 0;
+                for (int i = 0; i < Math.max(single.length, segmented.length); i++) {
+                    float expected = i < single.length ? single[i] : 0;
+                    float actual = i < segmented.length ? segmented[i] : 0;
+                    maxDifference = Math.max(maxDifference, Math.abs(expected - actual));
+                }
+                assertTrue(maxDifference <= TOLERANCE, segmentLength + "s segments (" + parallelSegments + " in parallel) differ by up to " + maxDifference);
+            }
+        }
+    }
+
+    private static float[] render(final float segmentLength, final int parallelSegments) throws Exception {
+        NbsSong song = (NbsSong) NoteBlockLib.readSong(songData, SongFormat.NBS);
+        float[][] samples = {new float[0]};
+        int[] length = {0};
+        soundBank.renderLock().lock();
+        try {
+            SegmentRenderer.render(song, FORMAT, AudioEncoder.MAX_SOUNDS, segmentLength, parallelSegments, false, new TaskHandle(0), (rendered, count) -> {
+                if (length[0] + count > samples[0].length) samples[0] = Arrays.copyOf(samples[0], Math.max(length[0] + count, samples[0].length * 2));
+                System.arraycopy(rendered, 0, samples[0], length[0], count);
+                length[0] += count;
+            });
+        } finally {
+            soundBank.renderLock().unlock();
+        }
+        return Arrays.copyOf(samples[0], length[0]);
+    }
+
+}